@@ -308,12 +308,6 @@ shouldInlinePrimOp' _ NewMVarOp _ = Right $ return
 shouldInlinePrimOp' _ IsEmptyMVarOp [mvar] = Right $ return
   [ intCompOp ifnull [mvar <> mVarValue] ]
 
-shouldInlinePrimOp' _ DelayOp [time] = Right $
-  let millis = time <> iconst jint 1000 <> idiv <> gconv jint jlong
-      nanos = time <> iconst jint 1000 <> irem
-                   <> iconst jint 1000 <> imul
-  in return [ normalOp (invokestatic (mkMethodRef "java/lang/Thread" "sleep" [jlong, jint] void)) [millis, nanos] ]
-
 shouldInlinePrimOp' _ MakeStableNameOp args = Right $ return
   [ normalOp (invokestatic (mkMethodRef "java/lang/System" "identityHashCode" [jobject] (ret jint))) args ]
 
@@ -358,6 +352,7 @@ mkRtsPrimOp ForkOp                  = (concGroup, "fork")
 mkRtsPrimOp ForkOnOp                = (concGroup, "forkOn")
 mkRtsPrimOp KillThreadOp            = (stgExceptionGroup, "killThread")
 mkRtsPrimOp YieldOp                 = (concGroup, "yield")
+mkRtsPrimOp DelayOp                 = (concGroup, "delay")
 mkRtsPrimOp LabelThreadOp           = (concGroup, "labelThread")
 mkRtsPrimOp IsCurrentThreadBoundOp  = (concGroup, "isCurrentThreadBound")
 mkRtsPrimOp NoDuplicateOp           = (stgGroup, "noDuplicate")
@@ -375,6 +370,7 @@ mkRtsPrimOp NewBCOOp                = (interpGroup, "newBCO")
 mkRtsPrimOp TraceEventOp            = (concGroup, "traceEvent")
 mkRtsPrimOp WaitWriteOp             = (concGroup, "waitWrite")
 mkRtsPrimOp WaitReadOp              = (concGroup, "waitRead")
+mkRtsPrimOp WaitFutureOp            = (concGroup, "waitFuture")
 mkRtsPrimOp primop = pprPanic "mkRtsPrimOp: unimplemented!" (ppr primop)
 
 cgPrimOp   :: PrimOp            -- the op
@@ -1010,11 +1006,20 @@ addrWriteOp ft argCode = \[this, ix, val] ->
 
 byteArrayIndexOp :: FieldType -> Code -> [Code] -> Code
 byteArrayIndexOp ft resCode = \[this, ix] ->
-  addrIndexOp ft resCode [this <> byteArrayBuf, ix]
+     this
+  <> ix
+  <> indexMultiplier ft
+  <> byteArrayGet ft
+  <> resCode
 
 byteArrayWriteOp :: FieldType -> Code -> [Code] -> Code
 byteArrayWriteOp ft argCode = \[this, ix, val] ->
-  addrWriteOp ft argCode [this <> byteArrayBuf, ix, val]
+    this
+ <> ix
+ <> indexMultiplier ft
+ <> val
+ <> argCode
+ <> byteArrayPut ft
 
 preserveByte :: Code
 preserveByte = iconst jint 0xFF <> iand
@@ -187,7 +187,7 @@ interpGroup = interp "Interpreter"
 
 -- Types
 byteArrayBuf :: Code
-byteArrayBuf = getfield $ mkFieldRef stgByteArray "bufferAddress" jlong
+byteArrayBuf = invokevirtual $ mkMethodRef stgByteArray "address" [] (ret jlong)
 
 byteArraySize :: Code
 byteArraySize = getfield $ mkFieldRef stgByteArray "size" jint
@@ -200,6 +200,14 @@ addressPut :: FieldType -> Code
 addressPut ft = invokestatic $ mkMethodRef memoryManager name [jlong, ft] void
   where name = T.append "put" $ fieldTypeSuffix ft
 
+byteArrayGet :: FieldType -> Code
+byteArrayGet ft = invokevirtual $ mkMethodRef stgByteArray name [jint] (ret ft)
+  where name = T.append "get" $ fieldTypeSuffix ft
+
+byteArrayPut :: FieldType -> Code
+byteArrayPut ft = invokevirtual $ mkMethodRef stgByteArray name [jint, ft] void
+  where name = T.append "put" $ fieldTypeSuffix ft
+
 fieldTypeSuffix :: FieldType -> Text
 fieldTypeSuffix (BaseType prim) =
   case prim of
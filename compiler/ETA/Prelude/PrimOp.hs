@@ -407,6 +407,7 @@ data PrimOp
    | DelayOp
    | WaitReadOp
    | WaitWriteOp
+   | WaitFutureOp
    | ForkOp
    | ForkOnOp
    | KillThreadOp
@@ -577,7 +578,7 @@ primOpTag :: PrimOp -> Int
 primOpTag op = iBox (tagOf_PrimOp op)
 
 maxPrimOpTag :: Int
-maxPrimOpTag = 1138
+maxPrimOpTag = 1139
 tagOf_PrimOp :: PrimOp -> FastInt
 tagOf_PrimOp CharGtOp = _ILIT(1)
 tagOf_PrimOp CharGeOp = _ILIT(2)
@@ -1718,6 +1719,7 @@ tagOf_PrimOp ReadJDoubleArrayOp = _ILIT(1135)
 tagOf_PrimOp WriteJDoubleArrayOp = _ILIT(1136)
 tagOf_PrimOp Addr2Int64Op = _ILIT(1137)
 tagOf_PrimOp Int642AddrOp = _ILIT(1138)
+tagOf_PrimOp WaitFutureOp = _ILIT(1139)
 
 instance Eq PrimOp where
     op1 == op2 = tagOf_PrimOp op1 ==# tagOf_PrimOp op2
@@ -2097,6 +2099,7 @@ allThePrimOps =
    , DelayOp
    , WaitReadOp
    , WaitWriteOp
+   , WaitFutureOp
    , ForkOp
    , ForkOnOp
    , KillThreadOp
@@ -3351,6 +3354,7 @@ primOpInfo IsEmptyMVarOp = mkGenPrimOp (fsLit "isEmptyMVar#")  [deltaTyVar, alph
 primOpInfo DelayOp = mkGenPrimOp (fsLit "delay#")  [deltaTyVar] [intPrimTy, mkStatePrimTy deltaTy] (mkStatePrimTy deltaTy)
 primOpInfo WaitReadOp = mkGenPrimOp (fsLit "waitRead#")  [alphaTyVar, deltaTyVar] [mkObjectPrimTy alphaTy, mkStatePrimTy deltaTy] (mkStatePrimTy deltaTy)
 primOpInfo WaitWriteOp = mkGenPrimOp (fsLit "waitWrite#")  [alphaTyVar, deltaTyVar] [mkObjectPrimTy alphaTy, mkStatePrimTy deltaTy] (mkStatePrimTy deltaTy)
+primOpInfo WaitFutureOp = mkGenPrimOp (fsLit "waitFuture#")  [alphaTyVar, betaTyVar, gammaTyVar, deltaTyVar] [mkObjectPrimTy alphaTy, mkStatePrimTy deltaTy] ((mkTupleTy UnboxedTuple [mkStatePrimTy deltaTy, mkObjectPrimTy betaTy, mkObjectPrimTy gammaTy]))
 primOpInfo ForkOp = mkGenPrimOp (fsLit "fork#")  [alphaTyVar] [alphaTy, mkStatePrimTy realWorldTy] ((mkTupleTy UnboxedTuple [mkStatePrimTy realWorldTy, threadIdPrimTy]))
 primOpInfo ForkOnOp = mkGenPrimOp (fsLit "forkOn#")  [alphaTyVar] [intPrimTy, alphaTy, mkStatePrimTy realWorldTy] ((mkTupleTy UnboxedTuple [mkStatePrimTy realWorldTy, threadIdPrimTy]))
 primOpInfo KillThreadOp = mkGenPrimOp (fsLit "killThread#")  [alphaTyVar] [threadIdPrimTy, alphaTy, mkStatePrimTy realWorldTy] (mkStatePrimTy realWorldTy)
@@ -4423,6 +4427,7 @@ primOpOutOfLine IsEmptyMVarOp = True
 primOpOutOfLine DelayOp = True
 primOpOutOfLine WaitReadOp = True
 primOpOutOfLine WaitWriteOp = True
+primOpOutOfLine WaitFutureOp = True
 primOpOutOfLine ForkOp = True
 primOpOutOfLine ForkOnOp = True
 primOpOutOfLine KillThreadOp = True
@@ -4758,6 +4763,7 @@ primOpHasSideEffects IsEmptyMVarOp = True
 primOpHasSideEffects DelayOp = True
 primOpHasSideEffects WaitReadOp = True
 primOpHasSideEffects WaitWriteOp = True
+primOpHasSideEffects WaitFutureOp = True
 primOpHasSideEffects ForkOp = True
 primOpHasSideEffects ForkOnOp = True
 primOpHasSideEffects KillThreadOp = True
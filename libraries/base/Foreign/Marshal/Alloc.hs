@@ -63,7 +63,9 @@ import Data.Maybe
 import Foreign.C.Types          ( CSize(..) )
 import Foreign.Storable         ( Storable(sizeOf,alignment) )
 import Foreign.ForeignPtr       ( FinalizerPtr )
+import GHC.IO
 import GHC.IO.Exception
+import GHC.Int                 ( Int64 )
 import GHC.Real
 import GHC.Ptr
 import GHC.Base
@@ -132,26 +134,19 @@ alloca  = doAlloca undefined
 -- exception), so the pointer passed to @f@ must /not/ be used after this.
 --
 allocaBytes :: Int -> (Ptr a -> IO b) -> IO b
-allocaBytes (I# size) action = IO $ \ s0 ->
-     case newPinnedByteArray# size s0      of { (# s1, mbarr# #) ->
-     case unsafeFreezeByteArray# mbarr# s1 of { (# s2, barr#  #) ->
-     let addr = Ptr (byteArrayContents# barr#) in
-     case action addr     of { IO action' ->
-     case action' s2      of { (# s3, r #) ->
-     case touch# barr# s3 of { s4 ->
-     (# s4, r #)
-  }}}}}
+allocaBytes size = allocaBytesAligned size 16
 
+-- The memory comes from a bump-pointer arena that belongs to the current
+-- thread, so that the allocation and the freeing at the end of the scope are
+-- cheap. Async exceptions are masked until the scope has been entered, so that
+-- the arena is always reset to its mark on the way out.
 allocaBytesAligned :: Int -> Int -> (Ptr a -> IO b) -> IO b
-allocaBytesAligned (I# size) (I# align) action = IO $ \ s0 ->
-     case newAlignedPinnedByteArray# size align s0 of { (# s1, mbarr# #) ->
-     case unsafeFreezeByteArray# mbarr# s1 of { (# s2, barr#  #) ->
-     let addr = Ptr (byteArrayContents# barr#) in
-     case action addr     of { IO action' ->
-     case action' s2      of { (# s3, r #) ->
-     case touch# barr# s3 of { s4 ->
-     (# s4, r #)
-  }}}}}
+allocaBytesAligned size align action = mask $ \restore -> do
+  mark <- _arenaMark
+  ptr  <- _arenaAllocate size align
+  r    <- restore (action ptr) `onException` _arenaRelease mark
+  _arenaRelease mark
+  return r
 
 -- |Resize a memory area that was allocated with 'malloc' or 'mallocBytes'
 -- to the size needed to store values of type @b@.  The returned pointer
@@ -224,6 +219,15 @@ foreign import java unsafe "@static eta.base.Utils._realloc"
 foreign import java unsafe "@static eta.runtime.io.MemoryManager.free"
   _free    :: Ptr a -> IO ()
 
+foreign import java unsafe "@static eta.runtime.io.ScopedArena.mark"
+  _arenaMark :: IO Int64
+
+foreign import java unsafe "@static eta.runtime.io.ScopedArena.allocate"
+  _arenaAllocate :: Int -> Int -> IO (Ptr a)
+
+foreign import java unsafe "@static eta.runtime.io.ScopedArena.release"
+  _arenaRelease :: Int64 -> IO ()
+
 -- | A pointer to a foreign function equivalent to 'free', which may be
 -- used as a finalizer (cf 'Foreign.ForeignPtr.ForeignPtr') for storage
 -- allocated with 'malloc', 'mallocBytes', 'realloc' or 'reallocBytes'.
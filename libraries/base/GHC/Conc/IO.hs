@@ -33,6 +33,9 @@ module GHC.Conc.IO
         -- * Waiting
         , threadDelay
         , registerDelay
+        , TimeoutKey
+        , registerTimeout
+        , unregisterTimeout
         , threadWaitRead
         , threadWaitWrite
         , threadWaitReadSTM
@@ -117,7 +120,14 @@ threadWaitWriteSTM fd = do
 closeFdWith :: (Channel -> IO ()) -- ^ Low-level action that performs the real close.
             -> Channel            -- ^ File descriptor to close.
             -> IO ()
-closeFdWith close fd = close fd
+closeFdWith close fd = do
+  close fd
+  ioManagerClosed fd
+
+-- Closing a channel doesn't wake up the selector it's registered with, so the
+-- IO manager has to be told.
+foreign import java unsafe "@static eta.runtime.concurrent.IOManager.closed"
+  ioManagerClosed :: Channel -> IO ()
 
 -- | Suspends the current thread for a given number of microseconds
 -- (GHC only).
@@ -135,4 +145,30 @@ threadDelay time = IO $ \s ->
 -- microseconds. The caveats associated with threadDelay also apply.
 --
 registerDelay :: Int -> IO (TVar Bool)
-registerDelay usecs = error "registerDelay: Eta RTS doesn't support the IO Manager."
+registerDelay usecs = do
+  t <- Sync.newTVarIO False
+  _ <- registerTimeout usecs (Sync.atomically $ Sync.writeTVar t True)
+  return t
+
+-- | A timeout registered with 'registerTimeout'.
+data {-# CLASS "eta.runtime.concurrent.Timer" #-} TimeoutKey =
+  TimeoutKey (Object# TimeoutKey)
+  deriving Class
+
+-- | Runs the action in a new thread once the given number of microseconds
+-- have passed, unless the timeout is unregistered before then. Unlike
+-- forking a thread that calls 'threadDelay', no thread waits in the meantime.
+registerTimeout :: Int -> IO () -> IO TimeoutKey
+registerTimeout usecs action = do
+  sp <- newStablePtr action
+  registerTimeout# usecs sp
+
+-- | Cancels a timeout, which has no effect if it has already expired.
+unregisterTimeout :: TimeoutKey -> IO ()
+unregisterTimeout = unregisterTimeout#
+
+foreign import java unsafe "@static eta.runtime.concurrent.Concurrent.registerTimeout"
+  registerTimeout# :: Int -> StablePtr (IO ()) -> IO TimeoutKey
+
+foreign import java unsafe "@static eta.runtime.concurrent.Concurrent.unregisterTimeout"
+  unregisterTimeout# :: TimeoutKey -> IO ()
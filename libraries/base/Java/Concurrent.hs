@@ -1,5 +1,5 @@
 {-# LANGUAGE NoImplicitPrelude, MagicHash, TypeOperators,
-  DataKinds, TypeFamilies, FlexibleContexts, MultiParamTypeClasses, AllowAmbiguousTypes #-}
+  DataKinds, TypeFamilies, FlexibleContexts, MultiParamTypeClasses, AllowAmbiguousTypes, UnboxedTuples #-}
 -----------------------------------------------------------------------------
 -- |
 -- Module      :  Java.Concurrent
@@ -19,7 +19,9 @@ module Java.Concurrent where
 
 import GHC.Base
 import GHC.Int
+import GHC.IO (throwIO)
 import Java.Array
+import Java.Exception (JException(..))
 import Java.Primitive
 import Java.Utils
 
@@ -56,6 +58,16 @@ foreign import java unsafe "@interface isCancelled" isCancelled :: (v <: Object,
 
 foreign import java unsafe "@interface isDone" isDone :: (v <: Object, b <: (Future v)) => Java b Bool
 
+-- | Blocks the current thread until the future completes and returns its
+-- result, unlike 'get' which blocks the whole Capability. A future that failed
+-- or was cancelled throws the 'JException' that 'get' would have thrown.
+waitFuture :: (Class v) => Future v -> IO v
+waitFuture (Future f#) = IO $ \s ->
+  case waitFuture# f# s of
+    (# s', e#, v# #) -> case isNullObject# e# of
+      0# -> unIO (throwIO (JException e#)) s'
+      _  -> (# s', obj v# #)
+
 -- End java.util.concurrent.Future
 
 -- Start java.util.concurrent.TimeUnit
@@ -0,0 +1,97 @@
+{-# LANGUAGE Trustworthy #-}
+-----------------------------------------------------------------------------
+-- |
+-- Module      :  System.IO.MMap
+-- License     :  BSD-style (see the file libraries/base/LICENSE)
+--
+-- Maintainer  :  libraries@haskell.org
+-- Stability   :  experimental
+-- Portability :  non-portable
+--
+-- Memory-mapped files. A mapped region of a file gets an ordinary 'Ptr' that
+-- can be used with 'peek', 'poke' and the rest of "Foreign", so large files can
+-- be processed without copying them and the OS page cache does the reading.
+--
+-- A single mapping can be at most 1GB.
+--
+-----------------------------------------------------------------------------
+
+module System.IO.MMap
+( MMapMode(..)
+, mmapFilePtr
+, munmapFilePtr
+, withMMapFilePtr
+, mmapLoad
+, mmapPrefetch
+, mmapIsLoaded
+, mmapSync
+) where
+
+import Control.Exception (bracket)
+import Data.Int (Int64)
+import Foreign.Ptr (Ptr)
+
+-- | Whether a mapping can be written to. Writes to a 'ReadWrite' mapping end
+-- up in the file.
+data MMapMode = ReadOnly | ReadWrite
+  deriving (Eq, Show)
+
+-- | @mmapFilePtr path mode offset size@ maps @size@ bytes of the file at @path@
+-- starting at @offset@. If @size@ is negative, the rest of the file is mapped.
+-- The mapping stays valid until it's unmapped with 'munmapFilePtr' or
+-- 'Foreign.Marshal.Alloc.free'.
+mmapFilePtr :: FilePath -> MMapMode -> Int64 -> Int -> IO (Ptr a)
+mmapFilePtr path mode offset size =
+  mapFile path offset size (mode == ReadWrite)
+
+-- | Unmaps a mapping made with 'mmapFilePtr'. The mapping must not be used
+-- afterwards.
+munmapFilePtr :: Ptr a -> IO ()
+munmapFilePtr ptr = unmapFile ptr >> return ()
+
+-- | Maps a file for the duration of an action, like 'mmapFilePtr'. The size of
+-- the mapping is passed to the action along with its address.
+withMMapFilePtr :: FilePath -> MMapMode -> Int64 -> Int
+                -> (Ptr a -> Int -> IO b) -> IO b
+withMMapFilePtr path mode offset size f =
+  bracket (mmapFilePtr path mode offset size) munmapFilePtr $ \ptr -> do
+    mappedSize <- allocatedSize ptr
+    f ptr mappedSize
+
+-- | Hints that a whole mapping will be needed soon by paging it into memory.
+mmapLoad :: Ptr a -> IO ()
+mmapLoad = loadMappedFile
+
+-- | @mmapPrefetch ptr len@ hints that @len@ bytes at @ptr@, which can point
+-- anywhere into a mapping, will be needed soon.
+mmapPrefetch :: Ptr a -> Int -> IO ()
+mmapPrefetch = prefetchMappedFile
+
+-- | Whether the whole mapping is likely to be in memory.
+mmapIsLoaded :: Ptr a -> IO Bool
+mmapIsLoaded = isMappedFileLoaded
+
+-- | Writes changes to a 'ReadWrite' mapping back to the file.
+mmapSync :: Ptr a -> IO ()
+mmapSync = syncMappedFile
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.mapFile"
+  mapFile :: String -> Int64 -> Int -> Bool -> IO (Ptr a)
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.unmapFile"
+  unmapFile :: Ptr a -> IO Bool
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.allocatedSize"
+  allocatedSize :: Ptr a -> IO Int
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.loadMappedFile"
+  loadMappedFile :: Ptr a -> IO ()
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.prefetchMappedFile"
+  prefetchMappedFile :: Ptr a -> Int -> IO ()
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.isMappedFileLoaded"
+  isMappedFileLoaded :: Ptr a -> IO Bool
+
+foreign import java unsafe "@static eta.runtime.io.MemoryManager.syncMappedFile"
+  syncMappedFile :: Ptr a -> IO ()
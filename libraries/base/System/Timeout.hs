@@ -24,6 +24,7 @@ import Control.Exception   (Exception(..), handleJust, bracket,
                             uninterruptibleMask_,
                             asyncExceptionToException,
                             asyncExceptionFromException)
+import GHC.Conc.IO         (registerTimeout, unregisterTimeout)
 import Data.Typeable
 import Data.Unique         (Unique, newUnique)
 
@@ -75,12 +76,29 @@ timeout n f
   | n <  0    = fmap Just f
   | n == 0    = return Nothing
   | otherwise = do
+      -- The timer only forks a thread once the timeout has expired.
+      --
+      -- An additional thread is required for the actual delivery of
+      -- the Timeout exception because killThread (or another throwTo)
+      -- is the only way to reliably interrupt a throwTo in flight.
       pid <- myThreadId
       ex  <- fmap Timeout newUnique
+      -- 'lock' synchronizes the timeout handler and the main thread:
+      --  * the main thread can disable the handler by writing to 'lock';
+      --  * the handler communicates the spawned thread's id through 'lock'.
+      -- These two cases are mutually exclusive.
+      lock <- newEmptyMVar
+      let handleTimeout = do
+              v <- isEmptyMVar lock
+              when v $ void $ forkIOWithUnmask $ \unmask -> unmask $ do
+                  v2 <- tryPutMVar lock =<< myThreadId
+                  when v2 $ throwTo pid ex
+          cleanupTimeout key = uninterruptibleMask_ $ do
+              v <- tryPutMVar lock undefined
+              if v then unregisterTimeout key
+                   else takeMVar lock >>= killThread
       handleJust (\e -> if e == ex then Just () else Nothing)
                   (\_ -> return Nothing)
-                  (bracket (forkIOWithUnmask $ \unmask ->
-                                unmask $ threadDelay n >> throwTo pid ex)
-                          (uninterruptibleMask_ . killThread)
-                          (\_ -> fmap Just f))
-        -- #7719 explains why we need uninterruptibleMask_ above.
+                  (bracket (registerTimeout n handleTimeout)
+                           cleanupTimeout
+                           (\_ -> fmap Just f))
@@ -239,17 +239,9 @@ public class Utils {
     }
 
     public static long _calloc(int size, int bytes) {
-        int        totalBytes = size * bytes;
-        long       address    = MemoryManager.allocateBuffer(totalBytes, true);
-        ByteBuffer buffer     = MemoryManager.getBoundedBuffer(address);
-        int        times      = totalBytes / 8;
-        int        remTimes   = totalBytes % 8;
-        while (times-- != 0) {
-            buffer.putLong(0);
-        }
-        while (remTimes-- != 0) {
-            buffer.put((byte) 0);
-        }
+        int  totalBytes = size * bytes;
+        long address    = MemoryManager.allocateBuffer(totalBytes, true);
+        MemoryManager.fill(address, (byte) 0, totalBytes);
         return address;
     }
 
@@ -262,30 +254,17 @@ public class Utils {
     }
 
     public static long c_memcpy(long destAddress, long srcAddress, int size) {
-        ByteBuffer src  = MemoryManager.getBoundedBuffer(srcAddress);
-        ByteBuffer dest = MemoryManager.getBoundedBuffer(destAddress);
-        src.limit(src.position() + size);
-        dest.put(src);
+        MemoryManager.copy(srcAddress, destAddress, size);
         return destAddress;
     }
 
     public static long c_memset(long address, int c_, int size) {
-        byte c = (byte) c_;
-        ByteBuffer buffer = MemoryManager.getBoundedBuffer(address);
-        while (size-- != 0) {
-            buffer.put(c);
-        }
+        MemoryManager.fill(address, (byte) c_, size);
         return address;
     }
 
     public static long c_memmove(long destAddress, long srcAddress, int size) {
-        ByteBuffer src  = MemoryManager.getBoundedBuffer(srcAddress);
-        ByteBuffer dest = MemoryManager.getBoundedBuffer(destAddress);
-        ByteBuffer copy = ByteBuffer.allocate(size);
-        src.limit(src.position() + size);
-        copy.put(src);
-        copy.flip();
-        dest.put(copy);
+        MemoryManager.copy(srcAddress, destAddress, size);
         return destAddress;
     }
 
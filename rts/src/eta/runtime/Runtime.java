@@ -1,14 +1,21 @@
 package eta.runtime;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.Closures;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.WeakPtr;
+import eta.runtime.concurrent.TimerManager;
+import eta.runtime.concurrent.VirtualThreads;
 import eta.runtime.io.MemoryManager;
+import eta.runtime.io.MemoryManagerStats;
 import eta.runtime.exception.RuntimeInternalError;
 
 public class Runtime {
@@ -81,9 +88,10 @@ public class Runtime {
     }
 
     /* Parameter: maxTSOBlockedTime (int)
-       The maximum amount of time (in ms) the runtime should wait to stop blocking
-       and resume other work when blocked on a given action. */
-    private static int maxTSOBlockTime = 1;
+       The maximum amount of time (in ms) a blocked thread waits before checking
+       again whether it can continue. Blocked threads are woken up as soon as
+       what they wait on changes, so this is only a safety net. */
+    private static int maxTSOBlockTime = 100;
 
     public static int getMaxTSOBlockTime() {
         return maxTSOBlockTime;
@@ -97,6 +105,68 @@ public class Runtime {
         maxTSOBlockTime = newMaxTSOBlockTime;
     }
 
+    /* Parameter: pollTime (int)
+       The amount of time (in ms) between checks for completed futures while
+       threads are waiting on them. */
+    private static int pollTime = 1;
+
+    public static int getPollTime() {
+        return pollTime;
+    }
+
+    public static long getPollTimeNanos() {
+        return pollTime * 1000000L;
+    }
+
+    public static void setPollTime(int newPollTime) {
+        pollTime = newPollTime;
+    }
+
+    /* Parameter: ioManagerThreads (int)
+       The number of threads that select on the channels that threads wait to
+       read from or write to, see IOManager. */
+    private static int ioManagerThreads = 1;
+
+    public static int getIOManagerThreads() {
+        return ioManagerThreads;
+    }
+
+    public static void setIOManagerThreads(int newIOManagerThreads) {
+        ioManagerThreads = newIOManagerThreads;
+    }
+
+    /* Parameter: contextSwitchTime (int)
+       The time slice (in ms) after which a thread that keeps running is
+       preempted if other threads are waiting for its Capability, see
+       ContextSwitchTimer. 0 preempts on every tick of the TimerManager. */
+    private static int contextSwitchTime = 20;
+
+    public static int getContextSwitchTime() {
+        return contextSwitchTime;
+    }
+
+    public static long getContextSwitchTimeNanos() {
+        return Math.max(contextSwitchTime * 1000000L, TimerManager.TICK_NANOS);
+    }
+
+    public static void setContextSwitchTime(int newContextSwitchTime) {
+        contextSwitchTime = newContextSwitchTime;
+    }
+
+    /* Parameter: maxPreemptionWorkers (int)
+       The number of workers that can be started beyond maxWorkerCapabilities to
+       run the threads that a preempted thread keeps waiting, see
+       Capability.preempt(). 0 disables them. */
+    private static int maxPreemptionWorkers = RuntimeOptions.getNumberOfProcessors();
+
+    public static int getMaxPreemptionWorkers() {
+        return maxPreemptionWorkers;
+    }
+
+    public static void setMaxPreemptionWorkers(int newMaxPreemptionWorkers) {
+        maxPreemptionWorkers = newMaxPreemptionWorkers;
+    }
+
     /* Parameter: minWorkerCapabilityIdleTime (int)
        The minimum amount of time (in ms) a Capability should stay idle before
        shutting down. */
@@ -114,6 +184,20 @@ public class Runtime {
         minWorkerCapabilityIdleTime = newMinWorkerCapabilityIdleTime;
     }
 
+    /* Parameter: virtualThreads (boolean)
+       Run forked threads on virtual threads instead of the run queues of the
+       Capabilities, so that blocking doesn't hold up a Java thread. Only takes
+       effect on JDK 21+. Default: False. */
+    private static boolean virtualThreads = false;
+
+    public static boolean useVirtualThreads() {
+        return virtualThreads && VirtualThreads.isSupported();
+    }
+
+    public static void setVirtualThreads(boolean newVirtualThreads) {
+        virtualThreads = newVirtualThreads;
+    }
+
     /* Parameter: gcOnWeakPtrFinalization (boolean)
        Should System.gc() be called when finalizing WeakPtrs since their value
        references will be nulled. Default: False to avoid unnecessary GC overhead. */
@@ -140,10 +224,207 @@ public class Runtime {
         maxLocalSparks = newMaxLocalSparks;
     }
 
+    /* Parameter: sizeClassAllocator (boolean)
+       Should small off-heap allocations be served from power-of-two size classes
+       instead of the coalescing allocator. Default: False. */
+    private static boolean sizeClassAllocator = false;
+
+    public static boolean useSizeClassAllocator() {
+        return sizeClassAllocator;
+    }
+
+    public static void setSizeClassAllocator(boolean newSizeClassAllocator) {
+        sizeClassAllocator = newSizeClassAllocator;
+    }
+
+    /* Parameter: allocationCacheSize (int)
+       The maximum number of free slots per size class that each Capability keeps
+       for itself when the size class allocator is in use. 0 disables the
+       per-Capability caches. */
+    private static int allocationCacheSize = 64;
+
+    public static int getAllocationCacheSize() {
+        return allocationCacheSize;
+    }
+
+    public static void setAllocationCacheSize(int newAllocationCacheSize) {
+        allocationCacheSize = newAllocationCacheSize;
+    }
+
+    /* Parameter: freeQueueSize (int)
+       The number of frees of the coalescing allocator that each Capability queues
+       up before returning them to the free lists in a batch. 0 returns them right
+       away. */
+    private static int freeQueueSize = 128;
+
+    public static int getFreeQueueSize() {
+        return freeQueueSize;
+    }
+
+    public static void setFreeQueueSize(int newFreeQueueSize) {
+        freeQueueSize = newFreeQueueSize;
+    }
+
+    /* Parameter: retainedFreeMemory (long)
+       The amount of memory (in bytes) in entirely free off-heap blocks that is
+       kept around for future allocations instead of being given back to the OS. */
+    private static long retainedFreeMemory = 32L * 1024 * 1024;
+
+    public static long getRetainedFreeMemory() {
+        return retainedFreeMemory;
+    }
+
+    public static void setRetainedFreeMemory(long newRetainedFreeMemory) {
+        retainedFreeMemory = newRetainedFreeMemory;
+    }
+
+    /* Parameter: freeMemoryReleaseThreshold (long)
+       The amount of memory (in bytes) in entirely free off-heap blocks above which
+       blocks are released until only retainedFreeMemory is left.
+       Default: Twice retainedFreeMemory. */
+    private static long freeMemoryReleaseThreshold = -1;
+
+    public static long getFreeMemoryReleaseThreshold() {
+        if (freeMemoryReleaseThreshold < 0) {
+            return 2 * retainedFreeMemory;
+        }
+        return Math.max(freeMemoryReleaseThreshold, retainedFreeMemory);
+    }
+
+    public static void setFreeMemoryReleaseThreshold(long newFreeMemoryReleaseThreshold) {
+        freeMemoryReleaseThreshold = newFreeMemoryReleaseThreshold;
+    }
+
+    /* Parameter: maxOffHeapMemory (long)
+       The most memory (in bytes) that direct blocks of the MemoryManager can take
+       up. 0 means there is no limit. */
+    private static long maxOffHeapMemory = 0;
+
+    public static long getMaxOffHeapMemory() {
+        return maxOffHeapMemory;
+    }
+
+    public static void setMaxOffHeapMemory(long newMaxOffHeapMemory) {
+        maxOffHeapMemory = newMaxOffHeapMemory;
+    }
+
+    /* Parameter: offHeapHighWater (long)
+       The amount of memory (in bytes) in direct blocks above which the runtime
+       starts reclaiming off-heap memory in the background.
+       Default: 90% of maxOffHeapMemory, or no limit if that isn't set. */
+    private static long offHeapHighWater = -1;
+
+    public static long getOffHeapHighWater() {
+        if (offHeapHighWater >= 0) {
+            return offHeapHighWater;
+        }
+        return (maxOffHeapMemory > 0)? maxOffHeapMemory / 10 * 9 : Long.MAX_VALUE;
+    }
+
+    public static void setOffHeapHighWater(long newOffHeapHighWater) {
+        offHeapHighWater = newOffHeapHighWater;
+    }
+
+    /* Parameter: offHeapWaitTime (int)
+       The maximum amount of time (in ms) an allocation waits for off-heap memory
+       to be reclaimed before throwing an OutOfMemoryError. */
+    private static int offHeapWaitTime = 1000;
+
+    public static int getOffHeapWaitTime() {
+        return offHeapWaitTime;
+    }
+
+    public static long getOffHeapWaitTimeNanos() {
+        return offHeapWaitTime * 1000000L;
+    }
+
+    public static void setOffHeapWaitTime(int newOffHeapWaitTime) {
+        offHeapWaitTime = newOffHeapWaitTime;
+    }
+
+    /* Parameter: leakSampleInterval (int)
+       Record the allocation site of one in every so many MemoryManager
+       allocations to track down off-heap leaks, see LeakDetector. 0 disables the
+       leak detector. */
+    private static int leakSampleInterval = 0;
+
+    public static int getLeakSampleInterval() {
+        return leakSampleInterval;
+    }
+
+    public static void setLeakSampleInterval(int newLeakSampleInterval) {
+        leakSampleInterval = newLeakSampleInterval;
+    }
+
+    /* Parameter: statsFile (String)
+       Where to print a summary of runtime statistics at exit: "-" for stderr and
+       null to not print one. */
+    private static String statsFile;
+
+    public static String getStatsFile() {
+        return statsFile;
+    }
+
+    public static void setStatsFile(String newStatsFile) {
+        statsFile = newStatsFile;
+    }
+
+    /* Parameter: registerMBeans (boolean)
+       Register the runtime's MBeans with the platform MBean server at startup. */
+    private static boolean registerMBeans = false;
+
+    public static boolean shouldRegisterMBeans() {
+        return registerMBeans;
+    }
+
+    public static void setRegisterMBeans(boolean newRegisterMBeans) {
+        registerMBeans = newRegisterMBeans;
+    }
+
+    /* Parameter: rawMemoryAccess (boolean)
+       Read and write off-heap memory through Unsafe at the native address of
+       each block instead of going through its ByteBuffer. */
+    private static boolean rawMemoryAccess = true;
+
+    public static boolean useRawMemoryAccess() {
+        return rawMemoryAccess;
+    }
+
+    public static void setRawMemoryAccess(boolean newRawMemoryAccess) {
+        rawMemoryAccess = newRawMemoryAccess;
+    }
+
+    /* Parameter: heapByteArrays (boolean)
+       Back unpinned ByteArrays with a byte[] that is left to the garbage collector
+       instead of allocating them from the MemoryManager. */
+    private static boolean heapByteArrays = true;
+
+    public static boolean useHeapByteArrays() {
+        return heapByteArrays;
+    }
+
+    public static void setHeapByteArrays(boolean newHeapByteArrays) {
+        heapByteArrays = newHeapByteArrays;
+    }
+
+    /* Parameter: arenaChunkSize (int)
+       The size of the chunks that the per-thread arenas of alloca and allocaBytes
+       grow by. Larger allocations get a chunk of their own. */
+    private static int arenaChunkSize = 32 * 1024;
+
+    public static int getArenaChunkSize() {
+        return arenaChunkSize;
+    }
+
+    public static void setArenaChunkSize(int newArenaChunkSize) {
+        arenaChunkSize = newArenaChunkSize;
+    }
+
     /* Debug Parameters */
     private static boolean debugScheduler;
     private static boolean debugMemoryManager;
     private static boolean debugSTM;
+    private static boolean debugMemoryAccess;
 
     public static boolean setDebugMode(char c) {
         boolean valid = true;
@@ -157,6 +438,9 @@ public class Runtime {
             case 't':
                 debugSTM = true;
                 break;
+            case 'b':
+                debugMemoryAccess = true;
+                break;
             default:
                 valid = false;
                 break;
@@ -176,8 +460,15 @@ public class Runtime {
         return debugMemoryManager;
     }
 
+    public static boolean debugMemoryAccess() {
+        return debugMemoryAccess;
+    }
+
     public static void main(String[] args, Closure mainClosure) throws Exception {
         RuntimeOptions.parse(args);
+        if (registerMBeans) {
+            MemoryManagerStats.registerMBean();
+        }
         try {
             evalLazyIO(mainClosure);
         } finally {
@@ -216,6 +507,8 @@ public class Runtime {
     public static void shutdownAndExit(int exitCode, boolean fastExit) {
         if (!fastExit) {
             exit();
+        } else {
+            maybePrintStats();
         }
         stgExit(exitCode);
     }
@@ -226,11 +519,33 @@ public class Runtime {
                   of the Eta RTS from the same JVM. */
         // MemoryManager.cleanup();
         WeakPtr.runAllFinalizers();
+        maybePrintStats();
         /* TODO: Check that all global state is cleaned up.
                  If there are Capabilities that are running,
                  either wait for them to finish or terminate them. */
     }
 
+    private static final AtomicBoolean printedStats = new AtomicBoolean();
+
+    public static void maybePrintStats() {
+        if (statsFile == null || !printedStats.compareAndSet(false, true)) return;
+        if (statsFile.equals("-")) {
+            MemoryManagerStats.get().printSummary(System.err);
+            System.err.flush();
+        } else {
+            PrintStream out = null;
+            try {
+                out = new PrintStream(new FileOutputStream(statsFile));
+                MemoryManagerStats.get().printSummary(out);
+            } catch (IOException e) {
+                System.err.println("Unable to write runtime statistics to " + statsFile +
+                                   ": " + e.getMessage());
+            } finally {
+                if (out != null) out.close();
+            }
+        }
+    }
+
     public static void maybeFlushStdHandles() {
         try {
             evalIO(Closures.flushStdHandles);
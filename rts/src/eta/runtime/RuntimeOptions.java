@@ -3,6 +3,8 @@ package eta.runtime;
 import java.util.List;
 import java.util.ArrayList;
 
+import eta.runtime.io.MemoryManager;
+
 import static eta.runtime.Runtime.stgExit;
 import static eta.runtime.RuntimeLogging.errorBelch;
 
@@ -11,6 +13,9 @@ public class RuntimeOptions {
     public static List<String> progArgs = new ArrayList<String>();
     public static List<String> rtsArgs = new ArrayList<String>();
 
+    /* The sample interval of a bare --leak-detector. */
+    public static final int DEFAULT_LEAK_SAMPLE_INTERVAL = 64;
+
     public static void parse(String[] args) {
         setFullProgArgs(args);
         int argc = args.length;
@@ -83,6 +88,123 @@ public class RuntimeOptions {
                         if (option.equals("info")) {
                             printRtsInfo();
                             stgExit(0);
+                        } else if (option.startsWith("allocator=")) {
+                            String allocator = option.substring(10);
+                            if (allocator.equals("segregated")) {
+                                Runtime.setSizeClassAllocator(true);
+                            } else if (allocator.equals("coalescing")) {
+                                Runtime.setSizeClassAllocator(false);
+                            } else {
+                                errorBelch("bad value for --allocator");
+                                error = true;
+                            }
+                        } else if (option.startsWith("alloc-cache=")) {
+                            String cacheSize = option.substring(12);
+                            int size = getIntOrZero(cacheSize);
+                            if (size < 0 || (size == 0 && !cacheSize.equals("0"))) {
+                                errorBelch("bad value for --alloc-cache");
+                                error = true;
+                            }
+                            Runtime.setAllocationCacheSize(size);
+                        } else if (option.startsWith("free-queue=")) {
+                            String queueSize = option.substring(11);
+                            int size = getIntOrZero(queueSize);
+                            if (size < 0 || (size == 0 && !queueSize.equals("0"))) {
+                                errorBelch("bad value for --free-queue");
+                                error = true;
+                            }
+                            Runtime.setFreeQueueSize(size);
+                        } else if (option.startsWith("max-off-heap=")) {
+                            long size = getSize(option.substring(13));
+                            if (size < 0) {
+                                errorBelch("bad value for --max-off-heap");
+                                error = true;
+                            }
+                            Runtime.setMaxOffHeapMemory(size);
+                        } else if (option.startsWith("off-heap-high-water=")) {
+                            long size = getSize(option.substring(20));
+                            if (size < 0) {
+                                errorBelch("bad value for --off-heap-high-water");
+                                error = true;
+                            }
+                            Runtime.setOffHeapHighWater(size);
+                        } else if (option.startsWith("off-heap-wait=")) {
+                            String waitTime = option.substring(14);
+                            int ms = getIntOrZero(waitTime);
+                            if (ms < 0 || (ms == 0 && !waitTime.equals("0"))) {
+                                errorBelch("bad value for --off-heap-wait");
+                                error = true;
+                            }
+                            Runtime.setOffHeapWaitTime(ms);
+                        } else if (option.equals("leak-detector")) {
+                            Runtime.setLeakSampleInterval(DEFAULT_LEAK_SAMPLE_INTERVAL);
+                        } else if (option.startsWith("leak-detector=")) {
+                            int interval = getIntOrZero(option.substring(14));
+                            if (interval <= 0) {
+                                errorBelch("bad value for --leak-detector");
+                                error = true;
+                            }
+                            Runtime.setLeakSampleInterval(interval);
+                        } else if (option.equals("virtual-threads")) {
+                            Runtime.setVirtualThreads(true);
+                        } else if (option.startsWith("io-managers=")) {
+                            int n = getIntOrZero(option.substring(12));
+                            if (n <= 0) {
+                                errorBelch("bad value for --io-managers");
+                                error = true;
+                            }
+                            Runtime.setIOManagerThreads(n);
+                        } else if (option.startsWith("preemption-workers=")) {
+                            String value = option.substring(19);
+                            int n = getIntOrZero(value);
+                            if (n < 0 || (n == 0 && !value.equals("0"))) {
+                                errorBelch("bad value for --preemption-workers");
+                                error = true;
+                            }
+                            Runtime.setMaxPreemptionWorkers(n);
+                        } else if (option.equals("jmx")) {
+                            Runtime.setRegisterMBeans(true);
+                        } else if (option.startsWith("memory-access=")) {
+                            String access = option.substring(14);
+                            if (access.equals("raw")) {
+                                Runtime.setRawMemoryAccess(true);
+                            } else if (access.equals("buffer")) {
+                                Runtime.setRawMemoryAccess(false);
+                            } else {
+                                errorBelch("bad value for --memory-access");
+                                error = true;
+                            }
+                        } else if (option.startsWith("byte-arrays=")) {
+                            String byteArrays = option.substring(12);
+                            if (byteArrays.equals("heap")) {
+                                Runtime.setHeapByteArrays(true);
+                            } else if (byteArrays.equals("managed")) {
+                                Runtime.setHeapByteArrays(false);
+                            } else {
+                                errorBelch("bad value for --byte-arrays");
+                                error = true;
+                            }
+                        } else if (option.startsWith("arena-chunk=")) {
+                            long size = getSize(option.substring(12));
+                            if (size <= 0 || size > MemoryManager.ONE_GB) {
+                                errorBelch("bad value for --arena-chunk");
+                                error = true;
+                            }
+                            Runtime.setArenaChunkSize((int) size);
+                        } else if (option.startsWith("retain-free-memory=")) {
+                            long size = getSize(option.substring(19));
+                            if (size < 0) {
+                                errorBelch("bad value for --retain-free-memory");
+                                error = true;
+                            }
+                            Runtime.setRetainedFreeMemory(size);
+                        } else if (option.startsWith("release-free-memory=")) {
+                            long size = getSize(option.substring(20));
+                            if (size < 0) {
+                                errorBelch("bad value for --release-free-memory");
+                                error = true;
+                            }
+                            Runtime.setFreeMemoryReleaseThreshold(size);
                         } else {
                             errorBelch("unknown RTS options: %s", arg);
                             error = true;
@@ -91,7 +213,7 @@ public class RuntimeOptions {
                     case 'C':
                         optionChecked = true;
                         if (arg.length() == 2) {
-                            Runtime.setMinTSOIdleTime(0);
+                            Runtime.setContextSwitchTime(0);
                         } else {
                             int ms = 0;
                             try {
@@ -100,7 +222,11 @@ public class RuntimeOptions {
                                 errorBelch("bad value for -C");
                                 error = true;
                             }
-                            Runtime.setMinTSOIdleTime(ms);
+                            if (ms < 0) {
+                                errorBelch("bad value for -C");
+                                error = true;
+                            }
+                            Runtime.setContextSwitchTime(ms);
                         }
                         break;
                     case 'D':
@@ -113,6 +239,10 @@ public class RuntimeOptions {
                             }
                         }
                         break;
+                    case 's':
+                        optionChecked = true;
+                        Runtime.setStatsFile((arg.length() == 2)? "-" : arg.substring(2));
+                        break;
                     case 'N':
                         optionChecked = true;
                         if (arg.length() == 2) {
@@ -171,6 +301,35 @@ public class RuntimeOptions {
         return res;
     }
 
+    /* Parses a size in bytes with an optional k, m or g suffix.
+       Returns -1 if the size is malformed. */
+    public static long getSize(String s) {
+        if (s.isEmpty()) return -1;
+        long multiplier = 1;
+        switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            default:
+                break;
+        }
+        if (multiplier != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(s);
+            return (size < 0)? -1 : size * multiplier;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public static int getNumberOfProcessors() {
         return java.lang.Runtime.getRuntime().availableProcessors();
     }
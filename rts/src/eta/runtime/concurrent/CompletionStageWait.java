@@ -0,0 +1,42 @@
+package eta.runtime.concurrent;
+
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.TSO;
+import eta.runtime.message.Message;
+
+/* Wakes up a thread in threadWaitFuture from the completion callback of a
+   CompletionStage, so that the future doesn't have to be polled. This class
+   is only loaded on JDK 8+. */
+final class CompletionStageWait implements BiConsumer<Object, Throwable> {
+    private final TSO tso;
+
+    private CompletionStageWait(TSO tso) {
+        this.tso = tso;
+    }
+
+    /* The wait goes in the blockInfo of the thread before the callback is
+       added, since the callback runs right away if the stage is complete. */
+    @SuppressWarnings("unchecked")
+    static void register(TSO tso, Object stage) {
+        CompletionStageWait wait = new CompletionStageWait(tso);
+        tso.blockInfo = wait;
+        ((CompletionStage<Object>) stage).whenComplete(wait);
+    }
+
+    @Override
+    public void accept(Object result, Throwable exception) {
+        tso.cap.postMessage(new Message() {
+            @Override
+            public void execute(Capability cap) {
+                /* The thread may have moved on if an asynchronous exception
+                   was thrown to it as the future completed. */
+                if (tso.blockInfo == CompletionStageWait.this) {
+                    cap.tryWakeupThread(tso);
+                }
+            }
+        });
+    }
+}
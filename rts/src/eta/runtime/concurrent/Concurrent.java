@@ -1,6 +1,5 @@
 package eta.runtime.concurrent;
 
-import java.io.IOException;
 import java.util.Map;
 import java.util.Deque;
 import java.util.Iterator;
@@ -11,10 +10,9 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.channels.Channel;
-import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SelectableChannel;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
 
 import eta.runtime.Runtime;
 import eta.runtime.stg.Stg;
@@ -22,7 +20,9 @@ import eta.runtime.stg.Capability;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
+import eta.runtime.stg.StablePtrTable;
 import eta.runtime.exception.Exception;
+import eta.runtime.message.Message;
 import static eta.runtime.RuntimeLogging.barf;
 import static eta.runtime.stg.TSO.*;
 import static eta.runtime.stg.TSO.WhyBlocked;
@@ -33,7 +33,11 @@ import static eta.runtime.stg.TSO.WhatNext.*;
 public class Concurrent {
     public static final int SPIN_COUNT = 1000;
 
-    /* Global Run Queue */
+    /* Global Run Queue
+
+       Holds threads that are created outside of a Capability, like the ones
+       that run finalizers. Threads forked by a Capability go to its own run
+       queue instead, where idle Capabilities steal them from. */
 
     public static final Deque<TSO> globalRunQueue = new ConcurrentLinkedDeque<TSO>();
     public static long globalRunQueueModifiedTime = 0;
@@ -50,24 +54,27 @@ public class Concurrent {
     /* MVar Operations */
 
     public static Closure takeMVar(StgContext context, MVar mvar) {
-        do {
-            try {
-                return mvar.take();
-            } catch (InterruptedException ie) {}
-        } while (true);
+        return mvar.take(context);
+    }
+
+    public static Closure tryTakeMVar(StgContext context, MVar mvar) {
+        Closure value = mvar.tryTake(context);
+        context.I(1, (value == null)? 0: 1);
+        return value;
     }
 
     public static Closure readMVar(StgContext context, MVar mvar) {
-        return mvar.read();
+        return mvar.read(context);
     }
 
     public static Closure putMVar(StgContext context, MVar mvar, Closure val) {
-        do {
-            try {
-                mvar.put(val);
-                return null;
-            } catch (InterruptedException ie) {}
-        } while (true);
+        mvar.put(context, val);
+        return null;
+    }
+
+    public static Closure tryPutMVar(StgContext context, MVar mvar, Closure val) {
+        context.I(1, mvar.tryPut(context, val)? 1: 0);
+        return null;
     }
 
     public static Closure tryReadMVar(StgContext context, MVar mvar) {
@@ -81,7 +88,11 @@ public class Concurrent {
         TSO currentTSO = context.currentTSO;
         TSO tso = Runtime.createIOThread(closure);
         tso.addFlags(currentTSO.andFlags(TSO_BLOCKEX | TSO_INTERRUPTIBLE));
-        pushToGlobalRunQueue(tso);
+        if (Runtime.useVirtualThreads()) {
+            VirtualThreads.start(tso);
+        } else {
+            cap.appendToRunQueue(tso);
+        }
         cap.idleLoop(false);
         context.O(1, tso);
         return null;
@@ -93,7 +104,10 @@ public class Concurrent {
 
              Hence, it makes no sense to use `forkOn` in Eta since threads will
              be bound to a given thread anyways. If you put multiple threads on
-             a single Capability, be warned that one of the threads may never run!
+             a single Capability, the ones that wait are handed to other
+             Capabilities once the running one has used up its time slice, see
+             ContextSwitchTimer. With virtual threads, every thread has a
+             Capability of its own.
      */
     public static Closure forkOn(StgContext context, int cpu, Closure closure) {
         return fork(context, closure);
@@ -101,10 +115,17 @@ public class Concurrent {
 
     public static Closure yield(StgContext context) {
         Capability cap = context.myCapability;
-        TSO tso        = context.currentTSO;
-        tso.whyBlocked = BlockedOnYield;
-        tso.blockInfo  = null;
-        cap.blockedLoop();
+        /* No other thread can run on this Capability while this one is on its
+           stack, so handle the messages that are waiting, let the parked
+           workers take over the threads in the run queue and give the other
+           Java threads a chance to run instead. Unlike a context switch, this
+           never starts a worker, since a thread may yield in a loop. */
+        cap.processInbox();
+        cap.threadPaused(context.currentTSO);
+        if (!cap.emptyRunQueue()) {
+            Capability.unblockCapabilities();
+        }
+        Thread.yield();
         return null;
     }
 
@@ -143,6 +164,12 @@ public class Concurrent {
         return null;
     }
 
+    /* Futures are polled by blocked Capabilities, so those can't block for
+       long while threads are waiting on them. */
+    public static boolean anyPolledWaits() {
+        return !futureMap.isEmpty();
+    }
+
     /* Managing Java Futures */
 
     public static final Map<Future, TSO> futureMap
@@ -159,34 +186,17 @@ public class Concurrent {
         }
     }
 
+    /* Plain futures are polled by blocked Capabilities. */
     public static void checkForCompletedFutures(Capability cap) {
         /* Only one thread at a time should check the futures. */
         if (futureMapLock.compareAndSet(false, true)) {
             try {
                 Iterator<Map.Entry<Future, TSO>> it = futureMap.entrySet().iterator();
                 while (it.hasNext()) {
-                    Map.Entry<Future, TSO> entry  = it.next();
-                    Future                 future = entry.getKey();
-                    TSO                    tso    = entry.getValue();
-                    if (future.isDone()) {
+                    Map.Entry<Future, TSO> entry = it.next();
+                    if (entry.getKey().isDone()) {
                         it.remove();
-                        Object    result    = null;
-                        java.lang.Exception exception = null;
-                        do {
-                            try {
-                                result    = future.get();
-                            } catch (CancellationException e) {
-                                exception = e;
-                            } catch (ExecutionException e) {
-                                exception = e;
-                            } catch (InterruptedException e) {
-                                /* TODO: Is this the right behavior? */
-                                continue;
-                            }
-                            break;
-                        } while (true);
-                        tso.blockInfo = new FutureResult(result, exception);
-                        cap.tryWakeupThread(tso);
+                        cap.tryWakeupThread(entry.getValue());
                     }
                 }
             } finally {
@@ -195,59 +205,167 @@ public class Concurrent {
         }
     }
 
+    /* Null on JDKs before 8. */
+    private static final Class<?> completionStageClass = findCompletionStageClass();
+
+    private static Class<?> findCompletionStageClass() {
+        try {
+            return Class.forName("java.util.concurrent.CompletionStage");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
     public static Closure threadWaitFuture(StgContext context, Future future) {
         Capability cap = context.myCapability;
         TSO tso        = context.currentTSO;
-        tso.whyBlocked = BlockedOnFuture;
-        tso.blockInfo  = future;
-        do {
-            if (futureMap.get(future) == null) {
-                futureMap.put(future, tso);
+        if (!future.isDone()) {
+            tso.whyBlocked = BlockedOnFuture;
+            if (completionStageClass != null && completionStageClass.isInstance(future)) {
+                /* A CompletionStage wakes up the thread itself when it completes. */
+                CompletionStageWait.register(tso, future);
+                do {
+                    cap.blockedLoop();
+                } while (tso.whyBlocked == BlockedOnFuture);
+            } else {
+                tso.blockInfo = future;
+                do {
+                    if (futureMap.get(future) == null) {
+                        futureMap.put(future, tso);
+                    }
+                    cap.blockedLoop();
+                } while (!future.isDone());
+                futureMap.remove(future, tso);
+                tso.whyBlocked = NotBlocked;
             }
-            cap.blockedLoop();
-        } while (!future.isDone());
-        Object exception = null;
-        Object result    = null;
-        if (tso.blockInfo != null) {
-            FutureResult futureResult = (FutureResult) tso.blockInfo;
-            exception = futureResult.exception;
-            result    = futureResult.result;
             tso.blockInfo = null;
         }
+        Object result = null;
+        java.lang.Exception exception = null;
+        do {
+            try {
+                result = future.get();
+            } catch (CancellationException e) {
+                exception = e;
+            } catch (ExecutionException e) {
+                exception = e;
+            } catch (InterruptedException e) {
+                /* TODO: Is this the right behavior? */
+                continue;
+            }
+            break;
+        } while (true);
         context.O(1, exception);
         context.O(2, result);
         return null;
     }
 
-    /* Managing Scalable I/O */
+    public static Closure waitFuture(StgContext context, Object o) {
+        return threadWaitFuture(context, (Future) o);
+    }
 
-    public static Selector globalSelector;
+    /* Stops polling the future of a thread that was blocked on it when an
+       asynchronous exception is thrown to it. */
+    public static void cancelFutureWait(TSO tso) {
+        Object blockInfo = tso.blockInfo;
+        if (blockInfo instanceof Future) {
+            futureMap.remove(blockInfo, tso);
+        }
+    }
 
-    static {
-        try {
-            globalSelector = Selector.open();
-        } catch (IOException e) {
-            globalSelector = null;
+    /* Timers */
+
+    /* The thread stays on the stack of its Capability while it waits, so the
+       Java thread of the Capability stays parked in blockedLoop until the timer
+       expires: only the threads in its run queue can move on, by being stolen
+       by other Capabilities. Only with virtual threads does waiting free up an
+       OS thread, since the virtual thread is unmounted while it's parked. */
+    public static Closure delay(StgContext context, int usecs) {
+        if (usecs <= 0) return null;
+        Capability cap = context.myCapability;
+        TSO tso        = context.currentTSO;
+        Timer timer    = new DelayTimer(tso, usecs * 1000L);
+        tso.whyBlocked = BlockedOnDelay;
+        tso.blockInfo  = timer;
+        TimerManager.add(timer);
+        do {
+            cap.blockedLoop();
+        } while (tso.whyBlocked == BlockedOnDelay);
+        tso.blockInfo = null;
+        return null;
+    }
+
+    private static final class DelayTimer extends Timer {
+        private final TSO tso;
+
+        DelayTimer(TSO tso, long delayNanos) {
+            super(delayNanos);
+            this.tso = tso;
+        }
+
+        @Override
+        protected void expire() {
+            tso.cap.postMessage(new Message() {
+                @Override
+                public void execute(Capability cap) {
+                    /* The thread may have moved on if an asynchronous exception
+                       was thrown to it as the timer expired. */
+                    if (tso.blockInfo == DelayTimer.this) {
+                        cap.tryWakeupThread(tso);
+                    }
+                }
+            });
+        }
+    }
+
+    /* Runs the IO action of the stable pointer on a new thread once `usecs`
+       have passed, unless the timer is unregistered first. Nothing waits for
+       the timer in the meantime. */
+    public static Timer registerTimeout(int usecs, int stablePtr) {
+        Timer timer = new ActionTimer(stablePtr, Math.max(usecs, 0) * 1000L);
+        TimerManager.add(timer);
+        return timer;
+    }
+
+    public static void unregisterTimeout(Timer timer) {
+        if (TimerManager.cancel(timer)) {
+            StablePtrTable.free(((ActionTimer) timer).stablePtr);
         }
     }
-    public static AtomicBoolean selectorLock = new AtomicBoolean();
+
+    private static final class ActionTimer extends Timer {
+        private final int stablePtr;
+
+        ActionTimer(int stablePtr, long delayNanos) {
+            super(delayNanos);
+            this.stablePtr = stablePtr;
+        }
+
+        @Override
+        protected void expire() {
+            Closure action = StablePtrTable.getClosure(stablePtr);
+            StablePtrTable.free(stablePtr);
+            TSO tso = Runtime.createIOThread(action);
+            if (Runtime.useVirtualThreads()) {
+                VirtualThreads.start(tso);
+            } else {
+                pushToGlobalRunQueue(tso);
+                Capability.wakeOrSpawnWorker();
+            }
+        }
+    }
+
+    /* Managing Scalable I/O */
 
     public static Closure threadWaitIO(StgContext context, Channel channel, int ops) {
         Capability cap = context.myCapability;
         TSO tso        = context.currentTSO;
-        if (globalSelector == null) {
-            barf("Your platform does not support non-blocking IO.");
-        }
         if (!(channel instanceof SelectableChannel)) {
             barf("Non-selectable channel sent to threadWaitIO#.");
         }
-        SelectionKey selectKey = null;
-        try {
-            SelectableChannel selectChannel = (SelectableChannel) channel;
-            selectKey = selectChannel.register(globalSelector, ops, tso);
-        } catch (ClosedChannelException e) {
-            /* TODO: If the channel is closed, the user should know about it.
-               Notify them in some form. */
+        SelectableChannel selectChannel = (SelectableChannel) channel;
+        if (selectChannel.isBlocking()) {
+            throw new IllegalBlockingModeException();
         }
         WhyBlocked blocked;
         switch (ops) {
@@ -255,17 +373,25 @@ public class Concurrent {
                 blocked = BlockedOnRead;
                 break;
             case SelectionKey.OP_WRITE:
-                blocked = BlockedOnRead;
+                blocked = BlockedOnWrite;
                 break;
             default:
                 blocked = BlockedOnIO;
                 break;
         }
+        IOWait wait    = new IOWait(tso, selectChannel, ops);
         tso.whyBlocked = blocked;
-        tso.blockInfo  = selectKey;
+        tso.blockInfo  = wait;
+        IOManager.add(wait);
+        /* closeFdWith wakes up the thread through IOManager.closed, but a
+           channel that is closed some other way is only noticed once the
+           blocked loop times out. */
         do {
             cap.blockedLoop();
-        } while (selectKey.isValid());
+        } while (tso.whyBlocked == blocked && selectChannel.isOpen());
+        IOManager.cancel(wait);
+        tso.whyBlocked = NotBlocked;
+        tso.blockInfo  = null;
         return null;
     }
 
@@ -277,31 +403,6 @@ public class Concurrent {
         return threadWaitIO(context, (Channel) o, SelectionKey.OP_WRITE);
     }
 
-    public static void checkForReadyIO(Capability cap) {
-        if (selectorLock.compareAndSet(false, true)) {
-            try {
-                int selectedKeys = globalSelector.selectNow();
-                if (selectedKeys > 0) {
-                    Iterator<SelectionKey> it = globalSelector.selectedKeys().iterator();
-                    while (it.hasNext()) {
-                        SelectionKey key = it.next();
-                        if (key.isValid() && ((key.readyOps() & key.interestOps()) != 0)) {
-                            TSO tso = (TSO) key.attachment();
-                            key.cancel();
-                            cap.tryWakeupThread(tso);
-                        }
-                        it.remove();
-                    }
-                }
-            } catch (IOException e) {
-                /* TODO: If the selector is closed, the user should know about it.
-                   Do some logging here. */
-            } finally {
-                selectorLock.set(false);
-            }
-        }
-    }
-
     public static int forkOS_createThread(int stablePtr) {
         try {
             new OSThread(stablePtr).start();
@@ -0,0 +1,68 @@
+package eta.runtime.concurrent;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+
+/* Time slicing
+
+   A TSO runs on the Java stack of its Capability, so it can't be suspended in
+   the middle of a computation and another one resumed in its place. Instead,
+   every contextSwitchTime this timer flags the Capabilities that have threads
+   waiting in their run queue, and the running thread notices at its next safe
+   point in Closure.evaluate and hands those threads over to another Capability,
+   see Capability.preempt(). The threads of virtual Capabilities yield their
+   carrier thread instead.
+
+   The timer is started once there are threads to preempt and rearms itself on
+   the TimerManager from then on. */
+public final class ContextSwitchTimer extends Timer {
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    /* The Capabilities of the virtual threads that are running, see
+       VirtualThreads. */
+    private static final Set<Capability> virtualCapabilities
+        = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
+
+    private ContextSwitchTimer() {
+        super(Runtime.getContextSwitchTimeNanos());
+    }
+
+    public static void start() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            TimerManager.add(new ContextSwitchTimer());
+        }
+    }
+
+    static void addVirtual(Capability cap) {
+        virtualCapabilities.add(cap);
+        start();
+    }
+
+    static void removeVirtual(Capability cap) {
+        virtualCapabilities.remove(cap);
+    }
+
+    @Override
+    protected void expire() {
+        flag(Capability.capabilities);
+        flag(Capability.workerCapabilities);
+        for (Capability cap: virtualCapabilities) {
+            cap.contextSwitch = true;
+        }
+        TimerManager.add(new ContextSwitchTimer());
+    }
+
+    private static void flag(Iterable<Capability> caps) {
+        for (Capability cap: caps) {
+            if (!cap.emptyRunQueue()) {
+                cap.contextSwitch = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package eta.runtime.concurrent;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+import eta.runtime.message.Message;
+import static eta.runtime.RuntimeLogging.barf;
+
+/* Wakes up the threads in threadWaitRead and threadWaitWrite as soon as their
+   channels are ready, so that waiting for I/O doesn't take up a Capability.
+
+   There are ioManagerThreads selector threads, each of which blocks in
+   select() on a Selector of its own. A channel always goes to the same
+   selector, where it stays registered with a single SelectionKey until it's
+   closed, and waiting only changes the interest operations of that key. A
+   consequence is that a channel can't be put back into blocking mode once a
+   thread has waited on it.
+
+   Channels are only ever registered and updated by their selector thread.
+   Other threads hand it their waits through a queue and wake it up.
+
+   Closing a channel cancels its key but doesn't wake up the selector, so
+   closeFdWith tells the IOManager through closed(), after which the threads
+   waiting on channels that are closed are woken up. Threads waiting on a
+   channel that's closed some other way only notice once their blockedLoop
+   times out. */
+public final class IOManager {
+
+    private static final Object lock = new Object();
+
+    /* Started on the first wait. */
+    private static volatile SelectorThread[] selectors;
+
+    /* Starts waiting for the channel of `wait` to be ready. Never blocks. */
+    public static void add(IOWait wait) {
+        selectorFor(wait.channel).submit(wait);
+    }
+
+    /* Stops waiting if the wait isn't over yet. */
+    public static void cancel(IOWait wait) {
+        if (!wait.done) {
+            wait.done = true;
+            selectorFor(wait.channel).submit(wait);
+        }
+    }
+
+    /* Wakes up the threads waiting on `channel`, which has just been closed. */
+    public static void closed(Channel channel) {
+        SelectorThread[] selectors = IOManager.selectors;
+        if (selectors != null && channel instanceof SelectableChannel) {
+            selectorFor((SelectableChannel) channel).closed();
+        }
+    }
+
+    private static SelectorThread selectorFor(SelectableChannel channel) {
+        SelectorThread[] selectors = IOManager.selectors;
+        if (selectors == null) {
+            selectors = start();
+        }
+        int hash = System.identityHashCode(channel) & Integer.MAX_VALUE;
+        return selectors[hash % selectors.length];
+    }
+
+    private static SelectorThread[] start() {
+        synchronized (lock) {
+            if (selectors == null) {
+                SelectorThread[] newSelectors =
+                    new SelectorThread[Math.max(1, Runtime.getIOManagerThreads())];
+                for (int i = 0; i < newSelectors.length; i++) {
+                    try {
+                        newSelectors[i] = new SelectorThread(Selector.open());
+                    } catch (IOException e) {
+                        barf("Your platform does not support non-blocking IO.");
+                    }
+                }
+                for (int i = 0; i < newSelectors.length; i++) {
+                    Thread thread = new Thread(newSelectors[i], "eta-io-manager-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                selectors = newSelectors;
+            }
+            return selectors;
+        }
+    }
+
+    /* Lets the thread of `wait` carry on. */
+    private static void wakeup(final IOWait wait) {
+        wait.done = true;
+        wait.tso.cap.postMessage(new Message() {
+            @Override
+            public void execute(Capability cap) {
+                /* The thread may have moved on if an asynchronous exception
+                   was thrown to it as the channel became ready. */
+                if (wait.tso.blockInfo == wait) {
+                    cap.tryWakeupThread(wait.tso);
+                }
+            }
+        });
+    }
+
+    private static final class SelectorThread implements Runnable {
+        private final Selector selector;
+        /* Waits to add, or to remove if they're done. */
+        private final Queue<IOWait> changes = new ConcurrentLinkedQueue<IOWait>();
+        /* The waits of the channels with threads waiting on them, which are
+           still around once the key of a closed channel is gone. */
+        private final Set<Waits> waiting = new HashSet<Waits>();
+        /* Set when a channel may have been closed. */
+        private volatile boolean closed;
+
+        SelectorThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        void submit(IOWait wait) {
+            changes.offer(wait);
+            selector.wakeup();
+        }
+
+        void closed() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                IOWait wait;
+                while ((wait = changes.poll()) != null) {
+                    if (wait.done) {
+                        remove(wait);
+                    } else {
+                        register(wait);
+                    }
+                }
+                if (closed) {
+                    closed = false;
+                    wakeupClosed();
+                }
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    /* TODO: If the selector is broken, the user should know
+                       about it. Do some logging here. */
+                    continue;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ready(key);
+                }
+            }
+        }
+
+        private void register(IOWait wait) {
+            if (wait.interestOps == 0) {
+                /* The channel can't be selected for any of the operations, so
+                   there's no use in waiting. */
+                wakeup(wait);
+                return;
+            }
+            SelectionKey key = wait.channel.keyFor(selector);
+            try {
+                if (key == null) {
+                    key = wait.channel.register(selector, 0, new Waits(wait.channel));
+                }
+                Waits waits = (Waits) key.attachment();
+                waits.add(wait);
+                waiting.add(waits);
+                key.interestOps(waits.interestOps);
+            } catch (ClosedChannelException e) {
+                /* The thread finds out that the channel is closed when it
+                   tries to use it. */
+                wakeup(wait);
+            } catch (RuntimeException e) {
+                /* Likewise if the key was cancelled by closing the channel or
+                   the channel is in blocking mode. */
+                wakeup(wait);
+            }
+        }
+
+        private void remove(IOWait wait) {
+            SelectionKey key = wait.channel.keyFor(selector);
+            if (key == null || !key.isValid()) return;
+            Waits waits = (Waits) key.attachment();
+            if (waits.remove(wait)) {
+                if (waits.isEmpty()) {
+                    waiting.remove(waits);
+                }
+                try {
+                    key.interestOps(waits.interestOps);
+                } catch (CancelledKeyException e) {}
+            }
+        }
+
+        private void ready(SelectionKey key) {
+            Waits waits = (Waits) key.attachment();
+            try {
+                waits.ready(key.readyOps());
+                key.interestOps(waits.interestOps);
+            } catch (CancelledKeyException e) {
+                waits.ready(~0);
+            }
+            if (waits.isEmpty()) {
+                waiting.remove(waits);
+            }
+        }
+
+        /* Treats the channels that are closed as ready, so that the threads
+           waiting on them find out when they try to use them. */
+        private void wakeupClosed() {
+            Iterator<Waits> it = waiting.iterator();
+            while (it.hasNext()) {
+                Waits waits = it.next();
+                if (!waits.channel.isOpen()) {
+                    waits.ready(~0);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /* The threads waiting on a channel, attached to its SelectionKey. Only
+       used by the selector thread. */
+    private static final class Waits {
+        final SelectableChannel channel;
+        private final List<IOWait> waits = new ArrayList<IOWait>(1);
+        int interestOps;
+
+        Waits(SelectableChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isEmpty() {
+            return waits.isEmpty();
+        }
+
+        void add(IOWait wait) {
+            waits.add(wait);
+            interestOps |= wait.interestOps;
+        }
+
+        boolean remove(IOWait wait) {
+            if (!waits.remove(wait)) return false;
+            updateInterestOps();
+            return true;
+        }
+
+        /* Wakes up the threads waiting for any of `readyOps`. */
+        void ready(int readyOps) {
+            Iterator<IOWait> it = waits.iterator();
+            while (it.hasNext()) {
+                IOWait wait = it.next();
+                if (wait.done) {
+                    it.remove();
+                } else if ((wait.interestOps & readyOps) != 0) {
+                    it.remove();
+                    wakeup(wait);
+                }
+            }
+            updateInterestOps();
+        }
+
+        private void updateInterestOps() {
+            int ops = 0;
+            for (IOWait wait: waits) {
+                ops |= wait.interestOps;
+            }
+            interestOps = ops;
+        }
+    }
+}
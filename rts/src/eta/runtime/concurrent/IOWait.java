@@ -0,0 +1,43 @@
+package eta.runtime.concurrent;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+import eta.runtime.stg.TSO;
+
+/* A thread waiting in threadWaitRead or threadWaitWrite for a channel to be
+   ready, see IOManager. */
+public final class IOWait {
+    public final TSO tso;
+    public final SelectableChannel channel;
+    /* The SelectionKey operations that are waited for. */
+    public final int ops;
+
+    /* The operations to select on. Waiting to read from a server socket means
+       waiting to accept, and waiting to write to a socket that is connecting
+       means waiting to connect, since the selector doesn't report the others
+       for them. */
+    final int interestOps;
+
+    /* Set once the wait is over, either because the channel became ready or
+       because the wait was cancelled. */
+    volatile boolean done;
+
+    public IOWait(TSO tso, SelectableChannel channel, int ops) {
+        this.tso     = tso;
+        this.channel = channel;
+        this.ops     = ops;
+        int interestOps = ops;
+        if ((ops & SelectionKey.OP_READ) != 0) {
+            interestOps |= SelectionKey.OP_ACCEPT;
+        }
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            interestOps |= SelectionKey.OP_CONNECT;
+        }
+        this.interestOps = interestOps & channel.validOps();
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+}
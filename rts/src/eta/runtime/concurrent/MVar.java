@@ -1,47 +1,198 @@
 package eta.runtime.concurrent;
 
+import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import eta.runtime.stg.Capability;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
 import eta.runtime.stg.Value;
+import static eta.runtime.stg.TSO.WhyBlocked;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
 
+/* An MVar keeps the threads that are blocked on it in a queue, in the order in
+   which they are served, like GHC does. While the MVar is empty, the queue holds
+   the threads that want to take or read its value, and while it's full, the
+   threads that want to put one.
+
+   A value is handed over to a blocked thread directly, so a thread blocked in
+   takeMVar can't have its value taken by another thread that comes along before
+   it wakes up, and it doesn't have to go back to the MVar once it does. */
 public class MVar extends Value {
-    public AtomicBoolean lock              = new AtomicBoolean(false);
-    public BlockingQueue<Closure> valQueue = new ArrayBlockingQueue<Closure>(1, true);
+    /* Null while the MVar is empty. The code generated for isEmptyMVar# reads
+       this directly. */
+    public volatile Closure value;
+
+    public AtomicBoolean lock = new AtomicBoolean(false);
+
+    /* Created when the first thread blocks. Guarded by lock. */
+    private Deque<Waiter> queue;
 
     public MVar(Closure value) {
-        if (value != null) {
-            valQueue.offer(value);
+        this.value = value;
+    }
+
+    public Closure take(StgContext context) {
+        lock();
+        Closure val = value;
+        if (val == null) {
+            return block(context, new Waiter(this, context.currentTSO, BlockedOnMVar, null));
         }
+        Waiter served = takeValue();
+        unlock();
+        wakeup(context.myCapability, served);
+        return val;
     }
 
-    public Closure take() throws InterruptedException {
-        return valQueue.take();
+    public Closure tryTake(StgContext context) {
+        lock();
+        Closure val = value;
+        if (val == null) {
+            unlock();
+            return null;
+        }
+        Waiter served = takeValue();
+        unlock();
+        wakeup(context.myCapability, served);
+        return val;
     }
 
-    public void put(Closure closure) throws InterruptedException {
-        valQueue.put(closure);
+    public void put(StgContext context, Closure val) {
+        lock();
+        if (value != null) {
+            block(context, new Waiter(this, context.currentTSO, BlockedOnMVar, val));
+            return;
+        }
+        Waiter served = putValue(val);
+        unlock();
+        wakeup(context.myCapability, served);
     }
 
-    public Closure read() {
-        Closure val;
-        do {
-            val = tryRead();
-        } while (val == null);
+    public boolean tryPut(StgContext context, Closure val) {
+        lock();
+        if (value != null) {
+            unlock();
+            return false;
+        }
+        Waiter served = putValue(val);
+        unlock();
+        wakeup(context.myCapability, served);
+        return true;
+    }
+
+    public Closure read(StgContext context) {
+        lock();
+        Closure val = value;
+        if (val == null) {
+            return block(context, new Waiter(this, context.currentTSO, BlockedOnMVarRead, null));
+        }
+        unlock();
         return val;
     }
 
     public Closure tryRead() {
-        return valQueue.peek();
+        return value;
+    }
+
+    /* Empties the MVar, or fills it right back with the value of the first
+       blocked putter. Returns the putter. Called with the lock held. */
+    private Waiter takeValue() {
+        Waiter putter = (queue == null)? null : queue.pollFirst();
+        if (putter == null) {
+            value = null;
+        } else {
+            value = putter.value;
+            putter.served = true;
+        }
+        return putter;
+    }
+
+    /* Hands the value to the readers at the front of the queue and to the first
+       taker, or else fills the MVar with it. Returns the threads that were
+       served, linked through their next field. Called with the lock held. */
+    private Waiter putValue(Closure val) {
+        Waiter served = null;
+        Waiter waiter;
+        while (queue != null && (waiter = queue.pollFirst()) != null) {
+            waiter.value  = val;
+            waiter.served = true;
+            waiter.next   = served;
+            served        = waiter;
+            if (waiter.whyBlocked == BlockedOnMVar) {
+                return served;
+            }
+        }
+        value = val;
+        return served;
+    }
+
+    /* Blocks the thread of `waiter` until it's served. Called with the lock
+       held, which is released. */
+    private Closure block(StgContext context, Waiter waiter) {
+        Capability cap = context.myCapability;
+        TSO tso        = waiter.tso;
+        if (queue == null) {
+            queue = new ArrayDeque<Waiter>(4);
+        }
+        if (waiter.whyBlocked == BlockedOnMVarRead) {
+            /* Readers don't empty the MVar, so they go first. */
+            queue.offerFirst(waiter);
+        } else {
+            queue.offerLast(waiter);
+        }
+        tso.blockInfo  = waiter;
+        tso.whyBlocked = waiter.whyBlocked;
+        unlock();
+        do {
+            cap.blockedLoop();
+        } while (!waiter.served);
+        tso.whyBlocked = NotBlocked;
+        tso.blockInfo  = null;
+        return waiter.value;
+    }
+
+    /* A served thread notices by itself once its Capability is woken up, so
+       there's no need to send it a message. */
+    private static void wakeup(Capability cap, Waiter served) {
+        while (served != null) {
+            Waiter next = served.next;
+            served.next = null;
+            Capability waiterCap = served.tso.cap;
+            if (waiterCap != cap) {
+                waiterCap.wakeup();
+            }
+            served = next;
+        }
+    }
+
+    /* Whether the thread blocked on an MVar has been served, in which case it
+       only has to wake up. */
+    public static boolean isServed(TSO tso) {
+        return ((Waiter) tso.blockInfo).served;
+    }
+
+    /* Takes a thread that is blocked on an MVar off its queue. Returns false if
+       it was too late because the thread was served already. */
+    public static boolean cancel(TSO tso) {
+        Waiter waiter = (Waiter) tso.blockInfo;
+        MVar mvar = waiter.mvar;
+        mvar.lock();
+        try {
+            if (waiter.served) return false;
+            mvar.queue.remove(waiter);
+            return true;
+        } finally {
+            mvar.unlock();
+        }
     }
 
     public final void lock() {
-        while (!tryLock()) {}
+        while (!tryLock()) {
+            /* The lock is only held briefly, unless its holder was descheduled. */
+            Thread.yield();
+        }
     }
 
     public final void unlock() {
@@ -51,4 +202,24 @@ public class MVar extends Value {
     public final boolean tryLock() {
         return lock.compareAndSet(false, true);
     }
+
+    /* A thread blocked on an MVar, which goes in its blockInfo. */
+    private static final class Waiter {
+        final MVar mvar;
+        final TSO tso;
+        /* BlockedOnMVar for takers and putters, BlockedOnMVarRead for readers. */
+        final WhyBlocked whyBlocked;
+        /* The value to put, or the value that was taken or read. */
+        Closure value;
+        volatile boolean served;
+        /* Links the threads that were served together until they're woken. */
+        Waiter next;
+
+        Waiter(MVar mvar, TSO tso, WhyBlocked whyBlocked, Closure value) {
+            this.mvar       = mvar;
+            this.tso        = tso;
+            this.whyBlocked = whyBlocked;
+            this.value      = value;
+        }
+    }
 }
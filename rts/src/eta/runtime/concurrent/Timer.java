@@ -0,0 +1,24 @@
+package eta.runtime.concurrent;
+
+/* A timeout registered with the TimerManager, which calls expire() from its
+   thread once the deadline has passed unless the timer is cancelled first. */
+public abstract class Timer {
+    /* In terms of System.nanoTime(). */
+    public final long deadline;
+
+    /* The tick of the timer wheel in which the timer expires.
+       Guarded by the TimerManager lock, as are the links below. */
+    long expiryTick;
+
+    /* The neighbours in the slot of the timer wheel, both null while the timer
+       is not in the wheel. */
+    Timer prev;
+    Timer next;
+
+    protected Timer(long delayNanos) {
+        this.deadline = System.nanoTime() + delayNanos;
+    }
+
+    /* Called from the timer thread, so it must not block. */
+    protected abstract void expire();
+}
@@ -0,0 +1,214 @@
+package eta.runtime.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Keeps the timers of threadDelay, registerDelay and timeout in a hierarchical
+   timer wheel that's advanced by a background thread, so that waiting for a
+   timer doesn't take up a Capability.
+
+   The wheel has LEVELS levels of WHEEL_SIZE slots. A slot of the first level
+   holds the timers that expire in a single tick, and a slot of each level above
+   holds the timers of a whole turn of the level below it, so adding or
+   cancelling a timer takes constant time. Every time the first level wraps
+   around, the timers of the next slot of the level above are cascaded down into
+   it. Timers that expire beyond the range of the wheel stay in the top level
+   and are cascaded again until they're in range. */
+public final class TimerManager {
+
+    /* The resolution of the timers. A timer expires in the first tick that
+       starts after its deadline, so it never expires early. */
+    public static final long TICK_NANOS = 1000000L;
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS     = 4;
+
+    /* The furthest a timer can be placed ahead in the wheel, about 4.6 hours. */
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    /* Ticks are counted from here so that they're never negative. */
+    private static final long epoch = System.nanoTime();
+
+    private static final Object lock = new Object();
+
+    /* Guarded by lock */
+    private static final Timer[][] wheel = new Timer[LEVELS][WHEEL_SIZE];
+    private static long currentTick;
+    private static int size;
+    /* The tick at which the timer thread wakes up next. */
+    private static long wakeupTick = Long.MAX_VALUE;
+    private static Thread thread;
+
+    static {
+        for (Timer[] level: wheel) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                Timer head = new Slot();
+                head.prev = head;
+                head.next = head;
+                level[i] = head;
+            }
+        }
+    }
+
+    /* Adds a timer, starting the timer thread if necessary. Never blocks. */
+    public static void add(Timer timer) {
+        synchronized (lock) {
+            if (size == 0) {
+                /* The wheel only needs to catch up with the time while it has
+                   timers. */
+                currentTick = Math.max(currentTick, now());
+            }
+            long expiry = (timer.deadline - epoch + TICK_NANOS - 1) / TICK_NANOS;
+            timer.expiryTick = Math.max(expiry, currentTick + 1);
+            insert(timer);
+            size++;
+            if (thread == null) {
+                thread = new Thread(new TimerThread(), "eta-timer-manager");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (timer.expiryTick < wakeupTick) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /* Returns false if the timer has already expired or was cancelled before. */
+    public static boolean cancel(Timer timer) {
+        synchronized (lock) {
+            if (timer.next == null) return false;
+            unlink(timer);
+            size--;
+            return true;
+        }
+    }
+
+    public static int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    private static long now() {
+        return (System.nanoTime() - epoch) / TICK_NANOS;
+    }
+
+    private static void insert(Timer timer) {
+        long ticks  = Math.min(timer.expiryTick - currentTick, MAX_TICKS);
+        long expiry = currentTick + ticks;
+        int  level  = 0;
+        while (level < LEVELS - 1 && ticks >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        Timer head = wheel[level][(int) (expiry >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /* Processes the ticks up to `tick`, adding the timers that expired to
+       `expired`. */
+    private static void advance(long tick, List<Timer> expired) {
+        while (currentTick < tick) {
+            if (size == 0) {
+                currentTick = tick;
+                break;
+            }
+            long t = ++currentTick;
+            int index = (int) t & WHEEL_MASK;
+            if (index == 0) {
+                for (int level = 1; level < LEVELS; level++) {
+                    int slot = (int) (t >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+                    cascade(wheel[level][slot]);
+                    if (slot != 0) break;
+                }
+            }
+            Timer head = wheel[0][index];
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                size--;
+                expired.add(timer);
+            }
+        }
+    }
+
+    private static void cascade(Timer head) {
+        Timer timer = head.next;
+        head.prev = head;
+        head.next = head;
+        while (timer != head) {
+            Timer next = timer.next;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    /* The first tick after the current one that can expire timers, which is
+       either a tick with timers in the first level or the next cascade. */
+    private static long nextEventTick() {
+        if (size == 0) return Long.MAX_VALUE;
+        long t = currentTick + 1;
+        while ((t & WHEEL_MASK) != 0) {
+            Timer head = wheel[0][(int) t & WHEEL_MASK];
+            if (head.next != head) break;
+            t++;
+        }
+        return t;
+    }
+
+    private static final class TimerThread implements Runnable {
+        @Override
+        public void run() {
+            List<Timer> expired = new ArrayList<Timer>();
+            for (;;) {
+                synchronized (lock) {
+                    for (;;) {
+                        advance(now(), expired);
+                        if (!expired.isEmpty()) break;
+                        wakeupTick = nextEventTick();
+                        try {
+                            if (wakeupTick == Long.MAX_VALUE) {
+                                lock.wait();
+                            } else {
+                                long nanos = epoch + wakeupTick * TICK_NANOS
+                                           - System.nanoTime();
+                                if (nanos > 0) {
+                                    lock.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+                                }
+                            }
+                        } catch (InterruptedException e) {}
+                    }
+                }
+                for (Timer timer: expired) {
+                    try {
+                        timer.expire();
+                    } catch (java.lang.Exception e) {
+                        /* One failing timer shouldn't stop the others from
+                           expiring. */
+                    }
+                }
+                expired.clear();
+            }
+        }
+    }
+
+    /* The head of the list of timers in a slot. */
+    private static final class Slot extends Timer {
+        Slot() {
+            super(0);
+        }
+
+        @Override
+        protected void expire() {}
+    }
+}
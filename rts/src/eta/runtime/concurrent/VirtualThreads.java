@@ -0,0 +1,78 @@
+package eta.runtime.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.TSO;
+import static eta.runtime.RuntimeLogging.debugScheduler;
+
+/* Runs forked threads on virtual threads of JDK 21+ when the virtualThreads
+   parameter is set.
+
+   Each TSO gets a virtual thread with a Capability of its own, so a TSO that
+   blocks only parks its virtual thread, which is unmounted from its carrier
+   thread in the meantime. The carrier threads belong to the JDK scheduler, so
+   these Capabilities aren't in Capability.capabilities and are never stolen
+   from or handed work: they run their TSO and exit.
+
+   The API is looked up reflectively so that the runtime still runs on older
+   JVMs, where forked threads go to the run queues as before. */
+public final class VirtualThreads {
+
+    /* Null if virtual threads aren't supported. */
+    private static final ThreadFactory factory = findFactory();
+
+    private static ThreadFactory findFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder   = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, "eta-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (java.lang.Exception e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return factory != null;
+    }
+
+    /* Starts running `tso` on a virtual thread. The Capability is created
+       upfront so that the TSO can be sent messages right away. */
+    public static void start(TSO tso) {
+        VirtualThread runner = new VirtualThread(tso);
+        Thread thread = factory.newThread(runner);
+        Capability cap = Capability.createVirtual(thread);
+        runner.cap = cap;
+        tso.cap    = cap;
+        ContextSwitchTimer.addVirtual(cap);
+        thread.start();
+    }
+
+    private static final class VirtualThread implements Runnable {
+        private final TSO tso;
+        /* Set before the thread starts. */
+        private Capability cap;
+
+        VirtualThread(TSO tso) {
+            this.tso = tso;
+        }
+
+        @Override
+        public void run() {
+            Capability.setLocal(cap);
+            debugScheduler("Running TSO[%d] on a virtual thread.", tso.id);
+            try {
+                cap.schedule(tso);
+            } catch (java.lang.Exception e) {
+                /* TODO: Find a better way to handle exceptions? */
+            }
+            ContextSwitchTimer.removeVirtual(cap);
+            cap.allocationCache.flush();
+            cap.freeQueue.drain();
+        }
+    }
+}
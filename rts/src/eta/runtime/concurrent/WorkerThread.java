@@ -1,19 +1,37 @@
 package eta.runtime.concurrent;
 
 import eta.runtime.stg.Capability;
+import eta.runtime.stg.TSO;
 
 public class WorkerThread extends Thread {
 
-    public WorkerThread() {}
+    /* The thread to run first, if any. */
+    private final TSO tso;
+    /* Whether the worker was started by Capability.preempt(). */
+    private final boolean preemption;
+
+    public WorkerThread() {
+        this(null, false);
+    }
+
+    public WorkerThread(TSO tso, boolean preemption) {
+        this.tso        = tso;
+        this.preemption = preemption;
+    }
 
     @Override
     public void run() {
         Capability worker = Capability.getLocal(true);
         try {
-            worker.schedule(null);
+            worker.schedule(tso);
         } catch (Exception e) {
             /* TODO: Find a better way to handle exceptions? */
         }
+        worker.allocationCache.flush();
+        worker.freeQueue.drain();
         Capability.workerCapabilities.remove(worker);
+        if (preemption) {
+            Capability.releasePreemptionWorker();
+        }
     }
 }
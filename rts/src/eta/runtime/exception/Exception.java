@@ -9,6 +9,12 @@ import eta.runtime.stg.Closure;
 import eta.runtime.stg.Closures;
 import eta.runtime.stg.StgContext;
 import eta.runtime.thunk.UpdateInfo;
+import eta.runtime.concurrent.Concurrent;
+import eta.runtime.concurrent.IOManager;
+import eta.runtime.concurrent.IOWait;
+import eta.runtime.concurrent.MVar;
+import eta.runtime.concurrent.Timer;
+import eta.runtime.concurrent.TimerManager;
 
 import eta.runtime.message.MessageBlackHole;
 import eta.runtime.message.MessageThrowTo;
@@ -281,8 +287,17 @@ public class Exception {
                     break;
                case BlockedOnMVar:
                case BlockedOnMVarRead:
-                   /* TODO: Figure out MVar story */
-                   barf("Unimplemented MVar");
+                   if (target.hasFlag(TSO_BLOCKEX)
+                       && !target.hasFlag(TSO_INTERRUPTIBLE)) {
+                       target.blockedThrowTo(msg);
+                       return false;
+                   }
+                   if (!MVar.cancel(target) && target.hasFlag(TSO_BLOCKEX)) {
+                       /* The thread has been served, so it's no longer
+                          interruptible. */
+                       target.blockedThrowTo(msg);
+                       return false;
+                   }
                    break;
                case BlockedOnBlackHole:
                    if (target.hasFlag(TSO_BLOCKEX)) {
@@ -308,10 +323,31 @@ public class Exception {
                        }
                        break;
                    }
+               case BlockedOnDelay:
+                   if (target.hasFlag(TSO_BLOCKEX)
+                       && !target.hasFlag(TSO_INTERRUPTIBLE)) {
+                       target.blockedThrowTo(msg);
+                       return false;
+                   }
+                   TimerManager.cancel((Timer) target.blockInfo);
+                   break;
+               case BlockedOnFuture:
+                   if (target.hasFlag(TSO_BLOCKEX)
+                       && !target.hasFlag(TSO_INTERRUPTIBLE)) {
+                       target.blockedThrowTo(msg);
+                       return false;
+                   }
+                   Concurrent.cancelFutureWait(target);
+                   break;
                case BlockedOnRead:
                case BlockedOnWrite:
-               case BlockedOnDelay:
-                   barf("Unimplemented IO manager");
+               case BlockedOnIO:
+                   if (target.hasFlag(TSO_BLOCKEX)
+                       && !target.hasFlag(TSO_INTERRUPTIBLE)) {
+                       target.blockedThrowTo(msg);
+                       return false;
+                   }
+                   IOManager.cancel((IOWait) target.blockInfo);
                    break;
                default:
                    barf("Unimplemented throwTo()");
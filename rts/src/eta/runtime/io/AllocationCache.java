@@ -0,0 +1,82 @@
+package eta.runtime.io;
+
+import eta.runtime.Runtime;
+import static eta.runtime.io.SizeClassAllocator.NUM_SIZE_CLASSES;
+import static eta.runtime.io.SizeClassAllocator.MIN_SIZE_CLASS_BITS;
+
+/* A cache of free slots for each size class of the SizeClassAllocator, one per
+   Capability. It is only ever touched by the thread that owns the Capability, so
+   allocations and frees that hit the cache take no locks at all. Slots move
+   between the cache and the global pool in batches of half the cache capacity,
+   and the whole cache is handed back when the Capability goes idle. */
+public final class AllocationCache {
+
+    /* The most memory a single size class may hold in a cache. */
+    public static final int MAX_CACHED_BYTES = 256 * 1024;
+
+    /* Direct size classes come first, followed by heap size classes. */
+    private final long[][] slots  = new long[2 * NUM_SIZE_CLASSES][];
+    private final int[]    counts = new int[2 * NUM_SIZE_CLASSES];
+
+    /* Returns 0 if the global pool is out of memory. */
+    public long allocate(SizeClassAllocator allocator, int sizeClass) {
+        int    i     = index(allocator, sizeClass);
+        long[] stack = stack(i, sizeClass);
+        int    count = counts[i];
+        if (count == 0) {
+            count = allocator.refill(sizeClass, stack, Math.max(1, stack.length / 2));
+            if (count == 0) return 0;
+        }
+        count--;
+        counts[i] = count;
+        return stack[count];
+    }
+
+    public void free(SizeClassAllocator allocator, int sizeClass, long address) {
+        int    i     = index(allocator, sizeClass);
+        long[] stack = stack(i, sizeClass);
+        int    count = counts[i];
+        if (count == stack.length) {
+            int keep = stack.length / 2;
+            allocator.release(sizeClass, stack, keep, count);
+            count = keep;
+        }
+        stack[count] = address;
+        counts[i]    = count + 1;
+    }
+
+    /* Returns every cached slot to the global pool. */
+    public void flush() {
+        for (int i = 0; i < counts.length; i++) {
+            int count = counts[i];
+            if (count > 0) {
+                boolean direct    = i < NUM_SIZE_CLASSES;
+                int     sizeClass = direct? i : i - NUM_SIZE_CLASSES;
+                SizeClassAllocator.get(direct).release(sizeClass, slots[i], 0, count);
+                counts[i] = 0;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        for (int count: counts) {
+            if (count > 0) return false;
+        }
+        return true;
+    }
+
+    private static int index(SizeClassAllocator allocator, int sizeClass) {
+        return allocator.direct? sizeClass : NUM_SIZE_CLASSES + sizeClass;
+    }
+
+    private long[] stack(int i, int sizeClass) {
+        long[] stack = slots[i];
+        if (stack == null) {
+            int capacity = Math.min(Runtime.getAllocationCacheSize(),
+                                    MAX_CACHED_BYTES >>> (sizeClass + MIN_SIZE_CLASS_BITS));
+            stack = new long[Math.max(2, capacity)];
+            slots[i] = stack;
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,122 @@
+package eta.runtime.io;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Records where the allocations of a block of the coalescing allocator start,
+   so that the allocation that contains an address can be found in constant time
+   and without allocating.
+
+   Allocations start at multiples of GRANULE bytes and there is a bit for each
+   granule of the block. Finding the closest start at or below an address is a
+   search for the previous set bit, which is kept short by summary levels: a bit
+   at one level says whether a word of the level below has any bits set. A block
+   has at most 64^5 granules, so every search looks at a handful of words.
+
+   Updates are serialized by the allocator, while searches run concurrently with
+   them. A search for an address inside a live allocation never goes past the
+   start of that allocation, and no other allocation can start in between, so it
+   is not affected by concurrent updates to other allocations. */
+public final class AllocationIndex {
+
+    public static final int GRANULE_BITS = 4;
+    public static final int GRANULE      = 1 << GRANULE_BITS;
+
+    /* levels[0] has a bit per granule and levels[i + 1] has a bit per word of
+       levels[i]. The last level is a single word. */
+    private final AtomicLongArray[] levels;
+
+    public AllocationIndex(int blockSize) {
+        int bits = blockSize >>> GRANULE_BITS;
+        int numLevels = 1;
+        for (int n = bits; n > 64; n = (n + 63) >>> 6) {
+            numLevels++;
+        }
+        levels = new AtomicLongArray[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            bits = (bits + 63) >>> 6;
+            levels[i] = new AtomicLongArray(bits);
+        }
+    }
+
+    /* Records an allocation that starts at `position` in the block. */
+    public void set(int position) {
+        int index = position >>> GRANULE_BITS;
+        for (AtomicLongArray level: levels) {
+            int  word = index >>> 6;
+            long bits = level.get(word);
+            level.set(word, bits | (1L << index));
+            /* The summary bit is already set if the word had any bits. */
+            if (bits != 0) return;
+            index = word;
+        }
+    }
+
+    /* Removes the allocation that starts at `position` in the block. Returns
+       false if there is none. */
+    public boolean clear(int position) {
+        if ((position & (GRANULE - 1)) != 0) return false;
+        int  index = position >>> GRANULE_BITS;
+        long mask  = 1L << index;
+        AtomicLongArray level = levels[0];
+        int  word = index >>> 6;
+        long bits = level.get(word);
+        if ((bits & mask) == 0) return false;
+        for (int i = 0;;) {
+            bits &= ~mask;
+            level.set(word, bits);
+            /* The summary bit stays set while the word has any bits. */
+            if (bits != 0 || ++i == levels.length) return true;
+            index = word;
+            mask  = 1L << index;
+            level = levels[i];
+            word  = index >>> 6;
+            bits  = level.get(word);
+        }
+    }
+
+    /* Whether an allocation starts at `position`. */
+    public boolean isSet(int position) {
+        if ((position & (GRANULE - 1)) != 0) return false;
+        int index = position >>> GRANULE_BITS;
+        return (levels[0].get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /* Returns the position of the closest allocation that starts at or below
+       `position`, or -1 if there is none. */
+    public int findStart(int position) {
+        int index = findPrevious(0, position >>> GRANULE_BITS);
+        return (index < 0)? -1 : index << GRANULE_BITS;
+    }
+
+    /* Returns the position of the first allocation that starts at or above
+       `position`, or -1 if there is none. */
+    public int findNextStart(int position) {
+        AtomicLongArray level = levels[0];
+        int index = position >>> GRANULE_BITS;
+        for (int word = index >>> 6; word < level.length(); word++) {
+            long bits = level.get(word);
+            if (word == index >>> 6) bits &= -1L << index;
+            if (bits != 0) {
+                return ((word << 6) + Long.numberOfTrailingZeros(bits)) << GRANULE_BITS;
+            }
+        }
+        return -1;
+    }
+
+    /* Returns the highest set bit at or below `index` in `levels[i]`. */
+    private int findPrevious(int i, int index) {
+        AtomicLongArray level = levels[i];
+        int  word = index >>> 6;
+        long bits = level.get(word) & (-1L >>> (63 - (index & 63)));
+        if (bits == 0) {
+            if (word == 0 || i + 1 == levels.length) return -1;
+            word = findPrevious(i + 1, word - 1);
+            if (word < 0) return -1;
+            bits = level.get(word);
+            /* The word was emptied after its summary bit was read, which can only
+               happen if `index` is not inside a live allocation. */
+            if (bits == 0) return -1;
+        }
+        return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+    }
+}
@@ -0,0 +1,188 @@
+package eta.runtime.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cern.colt.list.IntArrayList;
+
+import eta.runtime.Runtime;
+import eta.runtime.util.UnsafeUtil;
+import static eta.runtime.util.UnsafeUtil.UNSAFE;
+
+/* The blocks of a single block type of the MemoryManager, indexed by block index.
+
+   Lookups are wait-free: they read the current array and index into it. Writers
+   are serialized on the table and grow it by copying the entries into a larger
+   array that is published only once it's filled, so a reader never misses a
+   block that existed before its lookup started. */
+public final class BlockTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int firstIndex;
+
+    private volatile AtomicReferenceArray<Block> blocks
+        = new AtomicReferenceArray<Block>(INITIAL_CAPACITY);
+
+    /* The number of indices in use, including released ones.
+       Guarded by this. */
+    private int size;
+
+    /* Indices of released blocks that can be reused.
+       Guarded by this. */
+    private final IntArrayList freeIndices = new IntArrayList();
+
+    /* Indices below `firstIndex` are never handed out. */
+    public BlockTable(int firstIndex) {
+        this.firstIndex = firstIndex;
+        this.size       = firstIndex;
+    }
+
+    public Block get(int index) {
+        AtomicReferenceArray<Block> blocks = this.blocks;
+        return (index < blocks.length())? blocks.get(index) : null;
+    }
+
+    /* Returns the index of the new block or -1 if the table is full. */
+    public synchronized int add(Block block) {
+        int index;
+        if (!freeIndices.isEmpty()) {
+            int last = freeIndices.size() - 1;
+            index    = freeIndices.get(last);
+            freeIndices.remove(last);
+        } else if (size < MemoryManager.MAX_BLOCK_INDEX) {
+            index = size++;
+        } else {
+            return -1;
+        }
+        AtomicReferenceArray<Block> blocks = this.blocks;
+        if (index >= blocks.length()) {
+            int newLength = (int) Math.min((long) blocks.length() * 2,
+                                           MemoryManager.MAX_BLOCK_INDEX);
+            AtomicReferenceArray<Block> newBlocks
+                = new AtomicReferenceArray<Block>(newLength);
+            for (int i = 0; i < blocks.length(); i++) {
+                newBlocks.lazySet(i, blocks.get(i));
+            }
+            newBlocks.set(index, block);
+            this.blocks = newBlocks;
+        } else {
+            blocks.set(index, block);
+        }
+        return index;
+    }
+
+    /* Adds `run` at consecutive indices and returns the first one, or -1 if the
+       table is full. Released indices are not reused for runs since they're
+       rarely consecutive. */
+    public synchronized int addRun(Block[] run) {
+        if (size > MemoryManager.MAX_BLOCK_INDEX - run.length) return -1;
+        int index = size;
+        size += run.length;
+        AtomicReferenceArray<Block> blocks = this.blocks;
+        if (size > blocks.length()) {
+            long newLength = blocks.length();
+            while (newLength < size) newLength *= 2;
+            AtomicReferenceArray<Block> newBlocks = new AtomicReferenceArray<Block>
+                ((int) Math.min(newLength, MemoryManager.MAX_BLOCK_INDEX));
+            for (int i = 0; i < blocks.length(); i++) {
+                newBlocks.lazySet(i, blocks.get(i));
+            }
+            for (int i = 0; i < run.length; i++) {
+                newBlocks.lazySet(index + i, run[i]);
+            }
+            this.blocks = newBlocks;
+        } else {
+            for (int i = 0; i < run.length; i++) {
+                blocks.set(index + i, run[i]);
+            }
+        }
+        return index;
+    }
+
+    /* Removes the block at `index` and makes the index available again. */
+    public synchronized Block remove(int index) {
+        Block block = blocks.getAndSet(index, null);
+        if (block != null) {
+            freeIndices.add(index);
+        }
+        return block;
+    }
+
+    public synchronized boolean isFull() {
+        return freeIndices.isEmpty() && size == MemoryManager.MAX_BLOCK_INDEX;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        blocks = new AtomicReferenceArray<Block>(INITIAL_CAPACITY);
+        size   = firstIndex;
+        freeIndices.clear();
+    }
+
+    /* A block along with what's needed to access its memory through Unsafe. Direct
+       blocks have no base object and are addressed by their native address,
+       while heap blocks are addressed relative to their backing array. An offset
+       of 0 means the block must be accessed through its buffer, because raw
+       access is unavailable or disabled. The buffer may be a slice of a larger
+       allocation, which is what has to be freed when the block is released.
+       Blocks of the coalescing allocator have an index of their allocations. */
+    public static final class Block {
+        private static final long BYTE_ARRAY_OFFSET =
+            (UNSAFE == null)? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+
+        public final ByteBuffer buffer;
+        public final ByteBuffer allocation;
+        public final AllocationIndex index;
+        public final Object     base;
+        public final long       offset;
+        public final boolean    readOnly;
+
+        /* Whether the block is queued in MemoryManager.emptyBlocks and whether it
+           is still empty, see MemoryManager.recordEmptyBlock. */
+        public static final int NOT_QUEUED = 0;
+        public static final int EMPTY      = 1;
+        public static final int REUSED     = 2;
+
+        private volatile int emptyState;
+
+        private static final AtomicIntegerFieldUpdater<Block> emptyStateUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(Block.class, "emptyState");
+
+        public int getEmptyState() {
+            return emptyState;
+        }
+
+        public boolean casEmptyState(int expected, int state) {
+            return emptyStateUpdater.compareAndSet(this, expected, state);
+        }
+
+        public Block(ByteBuffer buffer) {
+            this(buffer, buffer, null);
+        }
+
+        public Block(ByteBuffer buffer, ByteBuffer allocation, AllocationIndex index) {
+            Object base   = null;
+            long   offset = 0;
+            if (UNSAFE != null && UnsafeUtil.UNALIGNED_ACCESS &&
+                Runtime.useRawMemoryAccess()) {
+                if (buffer.isDirect()) {
+                    offset = UnsafeUtil.directBufferAddress(buffer);
+                } else {
+                    base   = buffer.array();
+                    offset = BYTE_ARRAY_OFFSET + buffer.arrayOffset();
+                }
+            }
+            this.buffer     = buffer;
+            this.allocation = allocation;
+            this.index      = index;
+            this.base       = base;
+            this.offset     = offset;
+            this.readOnly   = buffer.isReadOnly();
+        }
+    }
+}
@@ -3,14 +3,32 @@ package eta.runtime.io;
 import java.util.TreeMap;
 import java.util.Map;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.lang.ref.WeakReference;
 
+import sun.misc.Unsafe;
+
+import eta.runtime.Runtime;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.StgContext;
 import eta.runtime.stg.Value;
+import eta.runtime.util.UnsafeUtil;
 import static eta.runtime.RuntimeLogging.barf;
 
+/* A ByteArray is either backed by a byte[] or by memory from the MemoryManager.
+
+   Unpinned ByteArrays don't need a stable address, so they get a byte[] that is
+   left to the garbage collector, which avoids the bookkeeping of the
+   MemoryManager and the PhantomReference that frees the memory. If the address
+   of such an array is asked for anyway, the byte[] itself is mapped into the
+   MemoryManager, so the address refers to the same memory as the array.
+
+   Pinned ByteArrays are allocated from the MemoryManager and freed once the
+   ByteArray is garbage collected.
+
+   Multi-byte values are stored big-endian in both cases, like in the
+   MemoryManager. */
 public final class ByteArray extends Value {
 
     public static ByteArray create(int n) {
@@ -22,46 +40,251 @@ public final class ByteArray extends Value {
     }
 
     public static ByteArray create(int n, int alignment, boolean pinned) {
-        long address = MemoryManager.allocateBuffer(n, pinned);
+        if (!pinned && Runtime.useHeapByteArrays()) {
+            return new ByteArray(new byte[n]);
+        }
+        long address = MemoryManager.allocateBuffer(n, alignment, pinned);
         ByteArray byteArray = new ByteArray(address, n);
-        IO.recordByteArray(byteArray);
+        IO.recordByteArray(byteArray, address);
         return byteArray;
     }
 
     public int  size;
-    public long bufferAddress;
+
+    /* The address of a ByteArray allocated from the MemoryManager, or 0 for a
+       heap-backed one. It's read on every access, so it's set once here and
+       the lazily mapped address of a heap-backed ByteArray is kept apart. */
+    public final long bufferAddress;
+    private volatile long mappedAddress;
+
+    /* The backing array of a heap-backed ByteArray or null. */
+    public final byte[] array;
 
     private ByteArray(long bufferAddress, int size) {
         this.size          = size;
         this.bufferAddress = bufferAddress;
+        this.array         = null;
+    }
+
+    private ByteArray(byte[] array) {
+        this.size          = array.length;
+        this.bufferAddress = 0;
+        this.array         = array;
+    }
+
+    /* Returns the address of the contents, mapping the array of a heap-backed
+       ByteArray into the MemoryManager the first time around. */
+    public long address() {
+        if (array == null) return bufferAddress;
+        long address = mappedAddress;
+        if (address == 0) {
+            synchronized (this) {
+                address = mappedAddress;
+                if (address == 0) {
+                    address = MemoryManager.mapBuffer(ByteBuffer.wrap(array));
+                    if (address == 0) {
+                        throw new OutOfMemoryError("The Eta MemoryManager is unable to allocate more off-heap memory.");
+                    }
+                    mappedAddress = address;
+                    IO.recordByteArray(this, address);
+                }
+            }
+        }
+        return address;
+    }
+
+    /** Heap-Backed Access **/
+
+    private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+
+    private static final boolean RAW_ACCESS =
+        UNSAFE != null && UnsafeUtil.UNALIGNED_ACCESS;
+
+    private static final long BYTE_ARRAY_OFFSET =
+        (UNSAFE == null)? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+
+    private static final boolean BIG_ENDIAN =
+        ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    /* Returns the Unsafe offset of `size` bytes at `offset` in `array`. Unsafe
+       does no bounds checks of its own, so they are done here. */
+    private static long rawOffset(byte[] array, int offset, int size) {
+        if (offset < 0 || offset > array.length - size) {
+            throw new IndexOutOfBoundsException("Access of " + size + " bytes @ " +
+                                                offset + " overruns a ByteArray of " +
+                                                array.length + " bytes");
+        }
+        return BYTE_ARRAY_OFFSET + offset;
+    }
+
+    /** Read APIs **/
+    public byte get(int offset) {
+        byte[] array = this.array;
+        if (array == null) return MemoryManager.get(bufferAddress + offset);
+        return array[offset];
+    }
+
+    public short getShort(int offset) {
+        byte[] array = this.array;
+        if (array == null) return MemoryManager.getShort(bufferAddress + offset);
+        if (RAW_ACCESS) {
+            short val = UNSAFE.getShort(array, rawOffset(array, offset, 2));
+            return BIG_ENDIAN? val : Short.reverseBytes(val);
+        }
+        return ByteBuffer.wrap(array).getShort(offset);
+    }
+
+    public char getChar(int offset) {
+        byte[] array = this.array;
+        if (array == null) return MemoryManager.getChar(bufferAddress + offset);
+        if (RAW_ACCESS) {
+            char val = UNSAFE.getChar(array, rawOffset(array, offset, 2));
+            return BIG_ENDIAN? val : Character.reverseBytes(val);
+        }
+        return ByteBuffer.wrap(array).getChar(offset);
     }
 
+    public int getInt(int offset) {
+        byte[] array = this.array;
+        if (array == null) return MemoryManager.getInt(bufferAddress + offset);
+        if (RAW_ACCESS) {
+            int val = UNSAFE.getInt(array, rawOffset(array, offset, 4));
+            return BIG_ENDIAN? val : Integer.reverseBytes(val);
+        }
+        return ByteBuffer.wrap(array).getInt(offset);
+    }
+
+    public long getLong(int offset) {
+        byte[] array = this.array;
+        if (array == null) return MemoryManager.getLong(bufferAddress + offset);
+        if (RAW_ACCESS) {
+            long val = UNSAFE.getLong(array, rawOffset(array, offset, 8));
+            return BIG_ENDIAN? val : Long.reverseBytes(val);
+        }
+        return ByteBuffer.wrap(array).getLong(offset);
+    }
+
+    public float getFloat(int offset) {
+        if (array == null) return MemoryManager.getFloat(bufferAddress + offset);
+        return Float.intBitsToFloat(getInt(offset));
+    }
+
+    public double getDouble(int offset) {
+        if (array == null) return MemoryManager.getDouble(bufferAddress + offset);
+        return Double.longBitsToDouble(getLong(offset));
+    }
+
+    /** Write APIs **/
+    public void put(int offset, byte val) {
+        byte[] array = this.array;
+        if (array == null) {
+            MemoryManager.put(bufferAddress + offset, val);
+        } else {
+            array[offset] = val;
+        }
+    }
+
+    public void putShort(int offset, short val) {
+        byte[] array = this.array;
+        if (array == null) {
+            MemoryManager.putShort(bufferAddress + offset, val);
+        } else if (RAW_ACCESS) {
+            UNSAFE.putShort(array, rawOffset(array, offset, 2),
+                            BIG_ENDIAN? val : Short.reverseBytes(val));
+        } else {
+            ByteBuffer.wrap(array).putShort(offset, val);
+        }
+    }
+
+    public void putChar(int offset, char val) {
+        byte[] array = this.array;
+        if (array == null) {
+            MemoryManager.putChar(bufferAddress + offset, val);
+        } else if (RAW_ACCESS) {
+            UNSAFE.putChar(array, rawOffset(array, offset, 2),
+                           BIG_ENDIAN? val : Character.reverseBytes(val));
+        } else {
+            ByteBuffer.wrap(array).putChar(offset, val);
+        }
+    }
+
+    public void putInt(int offset, int val) {
+        byte[] array = this.array;
+        if (array == null) {
+            MemoryManager.putInt(bufferAddress + offset, val);
+        } else if (RAW_ACCESS) {
+            UNSAFE.putInt(array, rawOffset(array, offset, 4),
+                          BIG_ENDIAN? val : Integer.reverseBytes(val));
+        } else {
+            ByteBuffer.wrap(array).putInt(offset, val);
+        }
+    }
+
+    public void putLong(int offset, long val) {
+        byte[] array = this.array;
+        if (array == null) {
+            MemoryManager.putLong(bufferAddress + offset, val);
+        } else if (RAW_ACCESS) {
+            UNSAFE.putLong(array, rawOffset(array, offset, 8),
+                           BIG_ENDIAN? val : Long.reverseBytes(val));
+        } else {
+            ByteBuffer.wrap(array).putLong(offset, val);
+        }
+    }
+
+    public void putFloat(int offset, float val) {
+        if (array == null) {
+            MemoryManager.putFloat(bufferAddress + offset, val);
+        } else {
+            putInt(offset, Float.floatToRawIntBits(val));
+        }
+    }
+
+    public void putDouble(int offset, double val) {
+        if (array == null) {
+            MemoryManager.putDouble(bufferAddress + offset, val);
+        } else {
+            putLong(offset, Double.doubleToRawLongBits(val));
+        }
+    }
+
+    /** Copying **/
+
     public static void copyAddrToByteArray( long srcAddress, ByteArray destArray
                                           , int offset, int n) {
-        ByteBuffer dest = MemoryManager.getBoundedBuffer(destArray.bufferAddress);
-        ByteBuffer src  = MemoryManager.getBoundedBuffer(srcAddress);
-        dest.position(dest.position() + offset);
-        dest.limit(dest.position() + n);
-        dest.put(src);
+        if (destArray.array != null) {
+            MemoryManager.copyToArray(srcAddress, destArray.array, offset, n);
+        } else {
+            MemoryManager.copy(srcAddress, destArray.bufferAddress + offset, n);
+        }
     }
 
     public static void copyByteArrayToAddr( ByteArray srcArray, int offset
                                           , long destAddress, int n) {
-        ByteBuffer src  = MemoryManager.getBoundedBuffer(srcArray.bufferAddress);
-        ByteBuffer dest = MemoryManager.getBoundedBuffer(destAddress);
-        src.position(src.position() + offset);
-        src.limit(src.position() + n);
-        dest.put(src);
+        if (srcArray.array != null) {
+            MemoryManager.copyFromArray(srcArray.array, offset, destAddress, n);
+        } else {
+            MemoryManager.copy(srcArray.bufferAddress + offset, destAddress, n);
+        }
     }
 
     public static void copyByteArray( ByteArray srcArray, int srcOffset
                                     , ByteArray destArray, int destOffset
                                     , int n) {
-        ByteBuffer src  = MemoryManager.getBoundedBuffer(srcArray.bufferAddress);
-        ByteBuffer dest = MemoryManager.getBoundedBuffer(destArray.bufferAddress);
-        src.position(src.position() + srcOffset);
-        src.limit(src.position() + n);
-        dest.position(dest.position() + destOffset);
-        dest.put(src);
+        if (srcArray.array != null) {
+            if (destArray.array != null) {
+                System.arraycopy(srcArray.array, srcOffset, destArray.array,
+                                 destOffset, n);
+            } else {
+                MemoryManager.copyFromArray(srcArray.array, srcOffset,
+                                            destArray.bufferAddress + destOffset, n);
+            }
+        } else if (destArray.array != null) {
+            MemoryManager.copyToArray(srcArray.bufferAddress + srcOffset,
+                                      destArray.array, destOffset, n);
+        } else {
+            MemoryManager.copy(srcArray.bufferAddress + srcOffset,
+                               destArray.bufferAddress + destOffset, n);
+        }
     }
 }
@@ -0,0 +1,58 @@
+package eta.runtime.io;
+
+import eta.runtime.Runtime;
+
+/* Frees of the coalescing allocator that are waiting to be returned to the free
+   lists, one queue per Capability. Like the AllocationCache, it is only ever
+   touched by the thread that owns the Capability, so queueing a free takes no
+   locks. The queued frees are coalesced in a batch under a single acquisition of
+   the free list lock when the queue fills up, when the Capability goes idle and
+   when an allocation is about to create a new block for lack of free space.
+
+   A queued allocation stays allocated until it's drained, so the depth of the
+   queue bounds the memory that is held up this way. */
+public final class FreeQueue {
+
+    private long[] direct;
+    private long[] heap;
+    private int    directCount;
+    private int    heapCount;
+
+    public void free(boolean isDirect, long address) {
+        if (isDirect) {
+            if (direct == null) direct = new long[Runtime.getFreeQueueSize()];
+            if (directCount == direct.length) drain(true);
+            direct[directCount++] = address;
+        } else {
+            if (heap == null) heap = new long[Runtime.getFreeQueueSize()];
+            if (heapCount == heap.length) drain(false);
+            heap[heapCount++] = address;
+        }
+    }
+
+    /* Returns the queued frees of the given kind to the free lists. Returns
+       false if there were none. */
+    public boolean drain(boolean isDirect) {
+        if (isDirect) {
+            int count = directCount;
+            if (count == 0) return false;
+            directCount = 0;
+            MemoryManager.freeRegions(true, direct, count);
+        } else {
+            int count = heapCount;
+            if (count == 0) return false;
+            heapCount = 0;
+            MemoryManager.freeRegions(false, heap, count);
+        }
+        return true;
+    }
+
+    public void drain() {
+        drain(true);
+        drain(false);
+    }
+
+    public boolean isEmpty() {
+        return directCount == 0 && heapCount == 0;
+    }
+}
@@ -60,8 +60,7 @@ public class IO {
     public static Map<PhantomReference<ByteArray>, Long> byteArrayRefMap
         = new ConcurrentHashMap<PhantomReference<ByteArray>, Long>();
 
-    public static void recordByteArray(ByteArray byteArray) {
-        long address = byteArray.bufferAddress;
+    public static void recordByteArray(ByteArray byteArray, long address) {
         PhantomReference<ByteArray> byteArrayRef
             = new PhantomReference<ByteArray>(byteArray, byteArrayRefQueue);
         byteArrayRefMap.put(byteArrayRef, address);
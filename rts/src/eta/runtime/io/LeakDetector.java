@@ -0,0 +1,200 @@
+package eta.runtime.io;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+
+/* Tracks where live MemoryManager allocations were made so that off-heap leaks
+   can be traced back to their source.
+
+   It's enabled with --leak-detector and samples one in every
+   Runtime.getLeakSampleInterval() allocations. A sampled allocation records the
+   Java stack of the allocating thread, starting from the first frame outside of
+   the MemoryManager, along with the class of the closure of the TSO that made
+   it. Allocations with the same stack and closure count towards the same site,
+   and a site holds the sampled allocations that have not been freed yet, so
+   sites with a lot of live memory that keeps growing are the likely leaks.
+
+   The sites can be dumped through the MemoryManager MBean and are listed in the
+   summary of +RTS -s. */
+public final class LeakDetector {
+
+    /* The number of frames that are recorded for an allocation site. */
+    public static final int MAX_FRAMES = 16;
+
+    private static final ConcurrentHashMap<Long, Sample> samples
+        = new ConcurrentHashMap<Long, Sample>();
+
+    private static final ConcurrentHashMap<AllocationSite, AllocationSite> sites
+        = new ConcurrentHashMap<AllocationSite, AllocationSite>();
+
+    public static boolean isEnabled() {
+        return Runtime.getLeakSampleInterval() > 0;
+    }
+
+    public static void allocated(long address, long size) {
+        int interval = Runtime.getLeakSampleInterval();
+        if (interval == 0) return;
+        if (interval > 1 && ThreadLocalRandom.current().nextInt(interval) != 0) return;
+        AllocationSite site = new AllocationSite(threadClosure(), callerFrames());
+        AllocationSite existing = sites.putIfAbsent(site, site);
+        if (existing != null) site = existing;
+        site.allocated(size);
+        Sample previous = samples.put(address, new Sample(site, size));
+        /* The free of the previous allocation at this address was missed. */
+        if (previous != null) previous.site.freed(previous.size);
+    }
+
+    public static void freed(long address) {
+        if (Runtime.getLeakSampleInterval() == 0) return;
+        Sample sample = samples.remove(address);
+        if (sample != null) sample.site.freed(sample.size);
+    }
+
+    public static void reset() {
+        samples.clear();
+        sites.clear();
+    }
+
+    private static String threadClosure() {
+        Capability cap = Capability.getLocalIfPresent();
+        TSO tso = (cap == null)? null : cap.context.currentTSO;
+        Closure closure = (tso == null)? null : tso.closure;
+        return (closure == null)? null : closure.getClass().getName();
+    }
+
+    private static StackTraceElement[] callerFrames() {
+        StackTraceElement[] frames = new Throwable().getStackTrace();
+        int start = 0;
+        while (start < frames.length &&
+               frames[start].getClassName().startsWith("eta.runtime.io.")) {
+            start++;
+        }
+        int end = Math.min(frames.length, start + MAX_FRAMES);
+        return Arrays.copyOfRange(frames, start, end);
+    }
+
+    /* Returns the sites with live sampled allocations, the ones with the most
+       live bytes first. */
+    public static List<AllocationSite> liveSites() {
+        List<AllocationSite> live = new ArrayList<AllocationSite>();
+        for (AllocationSite site: sites.values()) {
+            if (site.getLiveCount() > 0) live.add(site);
+        }
+        Collections.sort(live, new Comparator<AllocationSite>() {
+            @Override
+            public int compare(AllocationSite a, AllocationSite b) {
+                long x = a.getLiveBytes();
+                long y = b.getLiveBytes();
+                return (x < y)? 1 : ((x == y)? 0 : -1);
+            }
+        });
+        return live;
+    }
+
+    /* Prints up to `limit` sites with the most live memory. Counts are scaled up
+       by the sample interval, so they are estimates. */
+    public static void dump(PrintStream out, int limit) {
+        int interval = Runtime.getLeakSampleInterval();
+        if (interval == 0) {
+            out.println("The leak detector is disabled, enable it with +RTS --leak-detector.");
+            return;
+        }
+        List<AllocationSite> live = liveSites();
+        out.format("Live off-heap allocation sites (1 in %,d allocations sampled):%n",
+                   interval);
+        if (live.isEmpty()) {
+            out.println("  none");
+        }
+        for (AllocationSite site: live.subList(0, Math.min(limit, live.size()))) {
+            out.format("  %,d bytes in %,d allocations, %,d allocated in total",
+                       site.getLiveBytes() * interval, site.getLiveCount() * interval,
+                       site.getTotalCount() * interval);
+            if (site.closure != null) {
+                out.format(", thread %s", site.closure);
+            }
+            out.println();
+            for (StackTraceElement frame: site.frames) {
+                out.println("      at " + frame);
+            }
+        }
+    }
+
+    private static final class Sample {
+        final AllocationSite site;
+        final long size;
+
+        Sample(AllocationSite site, long size) {
+            this.site = site;
+            this.size = size;
+        }
+    }
+
+    public static final class AllocationSite {
+        public final String closure;
+        public final StackTraceElement[] frames;
+        private final int hash;
+
+        private final AtomicLong liveBytes  = new AtomicLong();
+        private final AtomicLong liveCount  = new AtomicLong();
+        private final AtomicLong totalCount = new AtomicLong();
+
+        AllocationSite(String closure, StackTraceElement[] frames) {
+            this.closure = closure;
+            this.frames  = frames;
+            this.hash    = 31 * Arrays.hashCode(frames) +
+                           ((closure == null)? 0 : closure.hashCode());
+        }
+
+        void allocated(long size) {
+            liveBytes.getAndAdd(size);
+            liveCount.getAndIncrement();
+            totalCount.getAndIncrement();
+        }
+
+        void freed(long size) {
+            liveBytes.getAndAdd(-size);
+            liveCount.getAndDecrement();
+        }
+
+        /* The sampled allocations of this site that are still live. */
+        public long getLiveBytes() {
+            return liveBytes.get();
+        }
+
+        public long getLiveCount() {
+            return liveCount.get();
+        }
+
+        /* All sampled allocations of this site, including the freed ones. */
+        public long getTotalCount() {
+            return totalCount.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AllocationSite)) return false;
+            AllocationSite other = (AllocationSite) o;
+            return hash == other.hash &&
+                   ((closure == null)? other.closure == null
+                                     : closure.equals(other.closure)) &&
+                   Arrays.equals(frames, other.frames);
+        }
+    }
+}
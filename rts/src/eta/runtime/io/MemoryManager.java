@@ -1,7 +1,7 @@
 package eta.runtime.io;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Queue;
 import java.util.NavigableMap;
@@ -9,9 +9,21 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
+import sun.misc.Unsafe;
+
+import eta.runtime.Runtime;
+import eta.runtime.util.UnsafeUtil;
+import eta.runtime.stg.Capability;
 import eta.runtime.stg.WeakPtr;
 import static eta.runtime.RuntimeLogging.barf;
 import static eta.runtime.RuntimeLogging.debugMemoryManager;
@@ -20,251 +32,781 @@ public class MemoryManager {
 
     /** Allocating Off-Heap Memory **/
 
-    /* TODO: Optimize this to make a specialized data structure that stores
-             primitive ints & longs. */
-    /* Map block sizes to addresses of free blocks */
+    /* Map block sizes to addresses of free blocks. The queues are never empty:
+       a size is removed along with the last of its blocks. */
     public static final NavigableMap<Integer, Queue<Long>> freeDirectBlocks
         = new ConcurrentSkipListMap<Integer, Queue<Long>>();
     public static final NavigableMap<Integer, Queue<Long>> freeHeapBlocks
         = new ConcurrentSkipListMap<Integer, Queue<Long>>();
 
-    /* Locks on each size */
-    public static Map<Integer, SizeLock> directSizeLocks
-        = new ConcurrentHashMap<Integer, SizeLock>();
-
-    public static AtomicBoolean directSizeLocksLock
-        = new AtomicBoolean();
-
-    public static Map<Integer, SizeLock> heapSizeLocks
-        = new ConcurrentHashMap<Integer, SizeLock>();
-
-    public static AtomicBoolean heapSizeLocksLock
-        = new AtomicBoolean();
-
-    public static SizeLock getSizeLock
-        (Map<Integer, SizeLock> sizeLocks, AtomicBoolean sizeLocksLock,
-         Integer key) {
-        SizeLock sizeLock;
-        for (;;) {
-            sizeLock = sizeLocks.get(key);
-            if (sizeLock == null) {
-                if (sizeLocksLock.compareAndSet(false, true)) {
-                    try {
-                        sizeLock = new SizeLock();
-                        sizeLocks.put(key, sizeLock);
-                    } finally {
-                        sizeLocksLock.set(false);
-                    }
-                } else continue;
-            }
-            return sizeLock;
-        }
-    }
-
     /* Map addresses to size of free blocks */
     public static final NavigableMap<Long, Integer> freeDirectAddresses
         = new ConcurrentSkipListMap<Long, Integer>();
     public static final NavigableMap<Long, Integer> freeHeapAddresses
         = new ConcurrentSkipListMap<Long, Integer>();
 
-    /* Map addresses to size of allocated blocks */
-    public static final NavigableMap<Long, Integer> allocatedDirectBlocks
-        = new ConcurrentSkipListMap<Long, Integer>();
-    public static final NavigableMap<Long, Integer> allocatedHeapBlocks
-        = new ConcurrentSkipListMap<Long, Integer>();
-
-    /* Actual storage of blocks */
-    public static List[] blockArrays =
-        { new ArrayList()
-        , new ArrayList()
-        , new ArrayList()
-        , new ArrayList() };
-
-    /* Locks for each blockArray */
-    public static AtomicBoolean[] blockLocks =
-        { new AtomicBoolean()
-        , new AtomicBoolean()
-        , new AtomicBoolean()
-        , new AtomicBoolean() };
+    /* Actual storage of blocks, one table per block type. The first 1MB block
+       would start at the null address, so it is never handed out. */
+    public static final BlockTable[] blockTables =
+        { new BlockTable(1)
+        , new BlockTable(0)
+        , new BlockTable(0)
+        , new BlockTable(0) };
 
     /* Buffer Allocation
-       This logic is rather complicated but it is done for efficiency purposes. Each
-       free block size has a lock associated with it which is taken whenever a
-       modification is done for that size. That way, two concurrent threads that
-       are trying to allocate two different sizes can do so without waiting.
+       Allocating from and freeing to the free lists is serialized on the
+       `freeBlocks` map of the memory kind, which keeps the free lists and the
+       merges and splits of neighbouring regions consistent. Small allocations
+       can avoid this lock with the SizeClassAllocator.
+
+       When the off-heap budget is exhausted, the allocation backs off until the
+       OffHeapReclaimer frees some memory or the wait time runs out.
      */
     public static long allocateBuffer(int n, boolean direct) {
-        assert n <= ONE_GB;
-        int     newRegionSize;
-        long    newAddress;
-        boolean attemptedGC = false;
+        return allocateBuffer(n, 0, direct);
+    }
+
+    /* Allocates `n` bytes at an address that is a multiple of `alignment`, which
+       must be a power of two of at most MAX_ALIGNMENT. An alignment of 0 or 1
+       means any address will do. Up to PAGE_SIZE, the native address of a direct
+       allocation is aligned as well, see createBlock. */
+    public static long allocateBuffer(int n, int alignment, boolean direct) {
+        if (alignment < 0 || alignment > MAX_ALIGNMENT ||
+            (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("Unsupported alignment: " + alignment +
+                                               " bytes.");
+        }
+        /* Allocations that don't fit in a block along with their header get blocks
+           of their own, which satisfy any alignment. */
+        if ((long) n + 2 * HEADER_SIZE + alignment > ONE_GB) {
+            return allocateLarge(n, direct);
+        }
+        long deadline = 0;
+        for (;;) {
+            long address;
+            if (Runtime.useSizeClassAllocator() &&
+                n <= SizeClassAllocator.MAX_SMALL_SIZE &&
+                alignment <= SizeClassAllocator.MAX_SMALL_SIZE) {
+                address = SizeClassAllocator.get(direct).allocate(n, alignment);
+            } else {
+                address = allocateRegion(n, alignment, direct);
+            }
+            if (address != 0) {
+                MemoryManagerStats.allocated(address, n);
+                return address;
+            }
+            if (deadline == 0) {
+                deadline = System.nanoTime() + Runtime.getOffHeapWaitTimeNanos();
+            }
+            awaitOffHeapMemory(n, deadline);
+        }
+    }
+
+    /* Blocks start at multiples of their size, so any alignment up to the
+       smallest block size can be satisfied. */
+    public static final int MAX_ALIGNMENT = 1 << 20;
+
+    /* Allocates from the free lists, adding a new block if needed. Returns 0 if
+       there's no room for a new block.
+
+       Allocations start at multiples of AllocationIndex.GRANULE and are preceded
+       by a header that holds their size, see writeHeader. An aligned allocation
+       looks for a free region that can fit the allocation even at its worst
+       offset, and returns the padding in front of it to the free lists. */
+    private static long allocateRegion(int n, int alignment, boolean direct) {
+        int granule = AllocationIndex.GRANULE;
+        int padded  = regionSize(n) +
+                      ((alignment > granule)? alignment - granule : 0);
         NavigableMap<Integer, Queue<Long>> freeBlocks;
         NavigableMap<Long, Integer> freeAddresses;
-        NavigableMap<Long, Integer> allocatedBlocks;
-        Map<Integer, SizeLock> sizeLocks;
-        AtomicBoolean sizeLocksLock;
         if (direct) {
-            allocatedBlocks = allocatedDirectBlocks;
             freeAddresses   = freeDirectAddresses;
             freeBlocks      = freeDirectBlocks;
-            sizeLocks       = directSizeLocks;
-            sizeLocksLock   = directSizeLocksLock;
         } else {
-            allocatedBlocks = allocatedHeapBlocks;
             freeAddresses   = freeHeapAddresses;
             freeBlocks      = freeHeapBlocks;
-            sizeLocks       = heapSizeLocks;
-            sizeLocksLock   = heapSizeLocksLock;
         }
-        main:
-        for (;;) {
-            Map.Entry<Integer, Queue<Long>> freeEntry = freeBlocks.ceilingEntry(n);
-            if (freeEntry != null) {
-                int           regionSize = freeEntry.getKey();
-                SizeLock      sizeLock   = getSizeLock(sizeLocks, sizeLocksLock, regionSize);
-                Queue<Long>   freeQueue  = freeEntry.getValue();
-                Long address;
-                /* We attempt to acquire a permit (exists if there is a queue element)
-                   and upon failure, continue the loop in case changes were made to
-                   freeBlocks. */
-                if (sizeLock.tryAcquire()) {
-                    assert freeQueue != null;
-                    address = freeQueue.poll();
-                    /* INVARIANT: sizeLocks.peekPermits() == freeQueue.size()
-                       Currently does not hold. Needs to be investigated. */
-                    assert address != null;
-                    freeAddresses.remove(address);
-                } else {
-                    if (freeQueue.isEmpty() && sizeLock.tryStartTransaction()) {
-                        try {
-                            freeBlocks.remove(regionSize);
-                        } finally {
-                            sizeLock.endTransaction();
-                        }
+        synchronized (freeBlocks) {
+            long regionAddress;
+            int  regionSize;
+            for (;;) {
+                Map.Entry<Integer, Queue<Long>> freeEntry = freeBlocks.ceilingEntry(padded);
+                if (freeEntry != null) {
+                    regionSize = freeEntry.getKey();
+                    Queue<Long> freeQueue = freeEntry.getValue();
+                    regionAddress = freeQueue.poll();
+                    if (freeQueue.isEmpty()) {
+                        freeBlocks.remove(regionSize);
                     }
+                    freeAddresses.remove(regionAddress);
+                    break;
+                } else if (drainLocalFreeQueue(direct)) {
+                    /* Frees that were still queued may have made room. */
                     continue;
-                }
-                newRegionSize = regionSize - n;
-                newAddress    = address + n;
-                allocatedBlocks.put(address, n);
-                debugMemoryManager("Allocate Block @ " + address + " " +
-                                   renderSize(n) + ".");
-                if (newRegionSize > 0) {
-                    insertFreeBlock(freeBlocks, freeAddresses, sizeLocks,
-                                    sizeLocksLock, newRegionSize, newAddress);
-                }
-                return address;
-            } else {
-                int blockType = getBlockType(n);
-                do {
-                    AtomicBoolean    blockLock = blockLocks[blockType];
-                    @SuppressWarnings("unchecked") List<ByteBuffer> blocks
-                        = blockArrays[blockType];
-                    if (blocks.size() == MAX_BLOCK_INDEX) {
+                } else {
+                    int blockType = getBlockType(padded);
+                    for (;;) {
+                        regionAddress = createBlock(blockType, direct, true);
+                        if (regionAddress == OVER_BUDGET) {
+                            debugMemoryManager("Off-Heap Budget Exhausted.");
+                            return 0;
+                        }
+                        if (regionAddress != NO_ROOM) break;
                         if (blockType == ONE_GB_BLOCK) {
-                            if (!attemptedGC) {
-                                /* Attempt to free native memory by first GC'ing
-                                   any garbage ByteArrays so that some native
-                                   memory can be freed. */
-                                System.gc();
-                                /* Give some time for the GC to work so that
-                                   the reference queues get populated. */
-                                try {
-                                    Thread.sleep(1);
-                                } catch (InterruptedException e) {}
-                                maybeFreeNativeMemory();
-                                /* Restart the top-level loop to see if any free blocks
-                                   have been allocated. */
-                                attemptedGC = true;
-                                debugMemoryManager("MemoryManager Space Full." +
-                                                   " GC and Retry.");
-                                continue main;
-                            } else {
-                                throw new OutOfMemoryError("The Eta MemoryManager is unable to allocate more off-heap memory.");
-                            }
+                            debugMemoryManager("MemoryManager Space Full.");
+                            return 0;
                         }
                         /* INVARIANT: Each increment of blockType yields the next
                                       higher blockSize. */
                         blockType += 1;
-                        continue;
                     }
-                    if (blockLock.compareAndSet(false, true)) {
-                        long address;
-                        try {
-                            long blockIndex = blocks.size();
-                            int  blockSize  = getBlockSize(blockType);
-                            address         = (blockType  << BLOCK_TYPE_BITS)
-                                            | (blockIndex << indexBits(blockType));
-                            /* Avoid allocating something on the null pointer address. */
-                            if (address == 0) address = 1;
-                            freeAddresses.remove(address);
-                            newRegionSize = blockSize - n;
-                            newAddress    = address + n;
-                            blocks.add(allocateAnonymousBuffer(blockSize, direct));
-                            debugMemoryManager("Create " + renderIsDirect(direct) +
-                                               " Block " + renderSize(blockSize) +
-                                               ".");
-                            allocatedBlocks.put(address, n);
-                            debugMemoryManager("Allocated Block @ " + address + " " +
-                                               renderSize(n) + ".");
-                            insertFreeBlock(freeBlocks, freeAddresses, sizeLocks,
-                                            sizeLocksLock, newRegionSize, newAddress);
-                        } finally {
-                            blockLock.set(false);
-                        }
-                        return address;
-                    } else {
-                        /* If unable to lock, continue the loop to see if free blocks
-                           became available in the mean time. */
-                        continue;
+                    regionSize = getBlockSize(blockType);
+                    break;
+                }
+            }
+            long address = alignAddress(regionAddress + HEADER_SIZE,
+                                        Math.max(alignment, granule));
+            long start   = address - HEADER_SIZE;
+            int  padding = (int)(start - regionAddress);
+            int  used    = regionSize(n);
+            int  newRegionSize = regionSize - padding - used;
+            BlockTable.Block block = lookupBlock(address);
+            writeHeader(block, address, n);
+            block.index.set(positionIndex(address));
+            reuseBlock(block, address);
+            debugMemoryManager("Allocate Block @ " + address + " " + renderSize(n) + ".");
+            if (padding > 0) {
+                insertFreeBlock(freeBlocks, freeAddresses, padding, regionAddress);
+            }
+            if (newRegionSize > 0) {
+                insertFreeBlock(freeBlocks, freeAddresses, newRegionSize,
+                                start + used);
+            }
+            return address;
+        }
+    }
+
+    /** Allocation Headers **/
+
+    /* Each allocation of the coalescing allocator is preceded by a header with its
+       size and the complement of its size, which is checked when the header is
+       read so that a header that was overwritten is reported rather than
+       corrupting the free lists. The header takes up a whole granule to keep
+       allocations aligned to it. */
+    public static final int HEADER_SIZE = AllocationIndex.GRANULE;
+
+    /* The size of the region taken up by an allocation of `n` bytes. Even an
+       empty allocation takes up a granule after its header, so that its address
+       is inside the region. */
+    public static int regionSize(int n) {
+        int granule = AllocationIndex.GRANULE;
+        return HEADER_SIZE + ((Math.max(n, 1) + granule - 1) & -granule);
+    }
+
+    private static void writeHeader(BlockTable.Block block, long address, int n) {
+        int position = positionIndex(address) - HEADER_SIZE;
+        block.buffer.putInt(position, n);
+        block.buffer.putInt(position + 4, ~n);
+    }
+
+    /* Returns the size of the allocation at `address`, which must be in the
+       AllocationIndex of `block`. */
+    private static int readHeader(BlockTable.Block block, long address) {
+        int position = positionIndex(address) - HEADER_SIZE;
+        int n = block.buffer.getInt(position);
+        if (block.buffer.getInt(position + 4) != ~n) {
+            barf("The header of the allocation @ " + address + " has been overwritten.");
+        }
+        return n;
+    }
+
+    /* Returns the address of the allocation that contains `address`, or 0 if
+       there is none, for a block of the coalescing allocator. */
+    private static long findAllocation(BlockTable.Block block, long address) {
+        int position = positionIndex(address);
+        int start    = block.index.findStart(position);
+        if (start < 0) return 0;
+        long allocation = address - (position - start);
+        /* The end of an allocation still counts as part of it. */
+        return (position <= start + readHeader(block, allocation))? allocation : 0;
+    }
+
+    /* Rounds `address` up to a multiple of `alignment`. */
+    public static long alignAddress(long address, int alignment) {
+        if (alignment <= 1) return address;
+        return (address + alignment - 1) & -((long) alignment);
+    }
+
+    /** Releasing Empty Blocks **/
+
+    /* Blocks that became entirely free at some point, each queued at most once.
+       The empty state of a block tells whether it's still empty: a block that
+       is allocated from again stays queued, but its bytes no longer count
+       towards emptyBlockBytes until it becomes empty again. */
+    public static final Queue<Long> emptyBlocks = new ConcurrentLinkedQueue<Long>();
+    public static final AtomicLong emptyBlockBytes = new AtomicLong();
+    public static final AtomicBoolean emptyBlocksLock = new AtomicBoolean();
+
+    public static void recordEmptyBlock(long address) {
+        BlockTable.Block block = lookupBlock(address);
+        if (block == null) return;
+        for (;;) {
+            int state = block.getEmptyState();
+            if (state == BlockTable.Block.EMPTY) return;
+            if (block.casEmptyState(state, BlockTable.Block.EMPTY)) {
+                debugMemoryManager("Empty Block @ " + address + ".");
+                emptyBlockBytes.addAndGet(getBlockSize(blockType(address)));
+                if (state == BlockTable.Block.NOT_QUEUED) {
+                    emptyBlocks.offer(address);
+                }
+                return;
+            }
+        }
+    }
+
+    /* Called when an empty block is allocated from again. */
+    public static void reuseBlock(BlockTable.Block block, long address) {
+        if (block.getEmptyState() == BlockTable.Block.EMPTY &&
+            block.casEmptyState(BlockTable.Block.EMPTY, BlockTable.Block.REUSED)) {
+            emptyBlockBytes.addAndGet(-getBlockSize(blockType(address)));
+        }
+    }
+
+    /* Takes a block that was polled from emptyBlocks out of the queue's
+       bookkeeping. Returns true if the block was still empty. */
+    private static boolean dequeueEmptyBlock(BlockTable.Block block, long address) {
+        for (;;) {
+            int state = block.getEmptyState();
+            if (block.casEmptyState(state, BlockTable.Block.NOT_QUEUED)) {
+                if (state != BlockTable.Block.EMPTY) return false;
+                emptyBlockBytes.addAndGet(-getBlockSize(blockType(address)));
+                return true;
+            }
+        }
+    }
+
+    /* Once more than the release threshold of memory sits in empty blocks, release
+       them until no more than the retained amount is left. The gap between the two
+       keeps a workload that oscillates around one limit from creating and
+       releasing the same blocks over and over. */
+    public static void maybeReleaseEmptyBlocks() {
+        if (emptyBlockBytes.get() <= Runtime.getFreeMemoryReleaseThreshold()) return;
+        releaseEmptyBlocks(Runtime.getRetainedFreeMemory());
+    }
+
+    /* Releases empty blocks until no more than `retained` bytes are left in them. */
+    public static void releaseEmptyBlocks(long retained) {
+        if (emptyBlocksLock.compareAndSet(false, true)) {
+            try {
+                Long address;
+                while (emptyBlockBytes.get() > retained &&
+                       (address = emptyBlocks.poll()) != null) {
+                    BlockTable.Block block = lookupBlock(address);
+                    if (block != null && dequeueEmptyBlock(block, address) &&
+                        claimEmptyBlock(address)) {
+                        releaseBlock(address);
                     }
-                } while (true);
+                }
+            } finally {
+                emptyBlocksLock.set(false);
             }
         }
     }
 
-    /* TODO: We can make inserting free blocks asynchronous to speed up allocation
-             a tiny bit, since we don't need to insert them to get the allocated
-             address. This can be done with message passing and adding a bit of
-             work to a Capability's idleLoop that reads from the message queue
-             and inserts free blocks accordingly. The tradeoff with this approach
-             is that new blocks may get allocated more if these free blocks
-             don't get inserted in time. */
+    /* Takes an empty block out of the allocator so that nothing can be allocated
+       from it. Returns false if the block is no longer empty. */
+    private static boolean claimEmptyBlock(long address) {
+        SizeClassAllocator.Slab slab = SizeClassAllocator.lookupSlab(address);
+        if (slab != null) {
+            return SizeClassAllocator.releaseSlab(slab);
+        }
+        ByteBuffer block = getBlock(address);
+        if (block == null) return false;
+        int blockSize = getBlockSize(blockType(address));
+        NavigableMap<Integer, Queue<Long>> freeBlocks;
+        NavigableMap<Long, Integer> freeAddresses;
+        if (block.isDirect()) {
+            freeBlocks    = freeDirectBlocks;
+            freeAddresses = freeDirectAddresses;
+        } else {
+            freeBlocks    = freeHeapBlocks;
+            freeAddresses = freeHeapAddresses;
+        }
+        synchronized (freeBlocks) {
+            if (!removeFreeBlock(freeBlocks, blockSize, address)) return false;
+            freeAddresses.remove(address);
+            return true;
+        }
+    }
+
+    /* Drops a claimed block and makes its index available to new blocks. */
+    private static void releaseBlock(long address) {
+        int blockType = blockType(address);
+        int blockIndex = blockIndex(address, indexBits(blockType));
+        BlockTable.Block released = blockTables[blockType].remove(blockIndex);
+        ByteBuffer block = released.buffer;
+        debugMemoryManager("Release " + renderIsDirect(block.isDirect()) + " Block @ " +
+                           address + " " + renderSize(block.capacity()) + ".");
+        MemoryManagerStats.blockReleased(blockType);
+        UnsafeUtil.freeDirectBuffer(released.allocation);
+        if (block.isDirect()) {
+            unreserveOffHeapMemory(block.capacity());
+        }
+    }
+
+    /** Mapped Buffers **/
+
+    /* Buffers that are given an address without being allocated from the free
+       lists, keyed by address: mapped files and the arrays of heap-backed
+       ByteArrays whose address was taken. Each takes up a block of its own. */
+    public static final Map<Long, ByteBuffer> mappedBuffers
+        = new ConcurrentHashMap<Long, ByteBuffer>();
+
+    /* Gives `buffer` an address in the smallest block type that can hold it.
+       Returns 0 if there's no room for it. */
+    public static long mapBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() > ONE_GB) {
+            long address = addLargeRun(sliceBlocks(buffer));
+            if (address != 0) {
+                mappedBuffers.put(address, buffer);
+                largeAllocations.put(address, (long) buffer.capacity());
+            }
+            return address;
+        }
+        BlockTable.Block block = new BlockTable.Block(buffer);
+        for (int blockType = getBlockType(buffer.capacity());
+             blockType <= ONE_GB_BLOCK; blockType++) {
+            int blockIndex = blockTables[blockType].add(block);
+            if (blockIndex >= 0) {
+                long address = blockAddress(blockType, blockIndex);
+                mappedBuffers.put(address, buffer);
+                return address;
+            }
+        }
+        return 0;
+    }
+
+    /* Takes away the address of the buffer mapped at `address` and returns the
+       buffer, or null if there is none. */
+    public static ByteBuffer unmapBuffer(long address) {
+        ByteBuffer buffer = mappedBuffers.remove(address);
+        if (buffer != null) {
+            int blockType = blockType(address);
+            int blockIndex = blockIndex(address, indexBits(blockType));
+            if (buffer.capacity() > ONE_GB) {
+                largeAllocations.remove(address);
+                for (int i = 0; i < largeRunLength(buffer.capacity()); i++) {
+                    blockTables[blockType].remove(blockIndex + i);
+                }
+            } else {
+                blockTables[blockType].remove(blockIndex);
+            }
+        }
+        return buffer;
+    }
+
+    /** Large Allocations **/
+
+    /* Allocations and mapped buffers of more than ONE_GB bytes don't fit in a
+       block, so they take up a run of consecutive 1GB blocks of their own. The
+       addresses of consecutive blocks are contiguous, so address arithmetic works
+       across the whole run: a scalar read or write only needs care when it
+       straddles two blocks, and getBoundedBuffer returns the part in a single
+       block, which the bulk operations below take one at a time. The blocks are
+       released as soon as the allocation is freed.
+
+       Keyed by address, with the size of the allocation. */
+    public static final NavigableMap<Long, Long> largeAllocations
+        = new ConcurrentSkipListMap<Long, Long>();
+
+    private static int largeRunLength(long n) {
+        return (int)((n + ONE_GB - 1) >>> ONE_GB_INDEX_BITS);
+    }
+
+    /* Allocates `n` bytes in a run of 1GB blocks. This is what allocateBuffer
+       does for sizes close to ONE_GB and above, but sizes of 2GB and more can only
+       be allocated from Java. */
+    public static long allocateLarge(long n, boolean direct) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Invalid large allocation of " + n +
+                                               " bytes.");
+        }
+        long deadline = 0;
+        for (;;) {
+            long address = createLargeAllocation(n, direct);
+            if (address != 0) {
+                debugMemoryManager("Allocate Large " + renderIsDirect(direct) + " @ " +
+                                   address + " [" + n + " bytes].");
+                largeAllocations.put(address, n);
+                MemoryManagerStats.allocated(address, n);
+                return address;
+            }
+            if (deadline == 0) {
+                deadline = System.nanoTime() + Runtime.getOffHeapWaitTimeNanos();
+            }
+            awaitOffHeapMemory(n, deadline);
+        }
+    }
+
+    /* Returns 0 if there's no room for the blocks. */
+    private static long createLargeAllocation(long n, boolean direct) {
+        BlockTable.Block[] run = new BlockTable.Block[largeRunLength(n)];
+        long reserved = 0;
+        boolean done  = false;
+        try {
+            for (int i = 0; i < run.length; i++) {
+                int blockSize = (int) Math.min(ONE_GB, n - ((long) i << ONE_GB_INDEX_BITS));
+                if (direct) {
+                    if (!reserveOffHeapMemory(blockSize)) return 0;
+                    reserved += blockSize;
+                    run[i] = newDirectBlock(blockSize, null);
+                } else {
+                    ByteBuffer buffer = allocateAnonymousBuffer(blockSize, false);
+                    run[i] = new BlockTable.Block(buffer);
+                }
+            }
+            long address = addLargeRun(run);
+            if (address == 0) return 0;
+            for (int i = 0; i < run.length; i++) {
+                MemoryManagerStats.blockCreated(ONE_GB_BLOCK);
+            }
+            done = true;
+            return address;
+        } finally {
+            if (!done) {
+                for (BlockTable.Block block: run) {
+                    if (block != null) UnsafeUtil.freeDirectBuffer(block.allocation);
+                }
+                if (reserved > 0) {
+                    reservedOffHeapMemory.addAndGet(-reserved);
+                    offHeapMemoryFreed();
+                }
+            }
+        }
+    }
+
+    /* Splits `buffer` into blocks of ONE_GB bytes. */
+    private static BlockTable.Block[] sliceBlocks(ByteBuffer buffer) {
+        BlockTable.Block[] run = new BlockTable.Block[largeRunLength(buffer.capacity())];
+        for (int i = 0; i < run.length; i++) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(i << ONE_GB_INDEX_BITS);
+            slice.limit((int) Math.min(buffer.capacity(), (long)(i + 1) << ONE_GB_INDEX_BITS));
+            run[i] = new BlockTable.Block(slice.slice());
+        }
+        return run;
+    }
+
+    /* Returns the address of the run or 0 if there's no room for it. */
+    private static long addLargeRun(BlockTable.Block[] run) {
+        int blockIndex = blockTables[ONE_GB_BLOCK].addRun(run);
+        return (blockIndex < 0)? 0 : blockAddress(ONE_GB_BLOCK, blockIndex);
+    }
+
+    /* Frees the large allocation at `address`. Returns false if there is none. */
+    private static boolean freeLarge(long address) {
+        Long n = largeAllocations.remove(address);
+        if (n == null) return false;
+        debugMemoryManager("Free Large @ " + address + " [" + n + " bytes].");
+        MemoryManagerStats.freed(address, n);
+        for (int i = 0; i < largeRunLength(n); i++) {
+            releaseBlock(address + ((long) i << ONE_GB_INDEX_BITS));
+        }
+        return true;
+    }
+
+    /* Returns the large allocation that contains `address` along with its size,
+       or null if there is none. The end of the allocation counts as inside it. */
+    private static Map.Entry<Long, Long> findLargeAllocation(long address) {
+        if (blockType(address) != ONE_GB_BLOCK || largeAllocations.isEmpty()) return null;
+        Map.Entry<Long, Long> entry = largeAllocations.floorEntry(address);
+        if (entry == null || address > entry.getKey() + entry.getValue()) return null;
+        return entry;
+    }
+
+    /** Memory-Mapped Files **/
+
+    /* Maps `size` bytes of the file at `path` starting at `offset` and returns the
+       address of the mapping. If `size` is negative, the rest of the file is mapped.
+       The mapping stays valid until it's unmapped with unmapFile or free. */
+    public static long mapFile(String path, long offset, int size, boolean writable)
+        throws IOException {
+        MappedByteBuffer mapped;
+        FileChannel channel = writable?
+            FileChannel.open(Paths.get(path), StandardOpenOption.READ,
+                             StandardOpenOption.WRITE):
+            FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            long mapSize = (size < 0)? channel.size() - offset : size;
+            if (mapSize <= 0 || mapSize > ONE_GB) {
+                throw new IllegalArgumentException("Unable to map " + mapSize +
+                                                   " bytes of " + path + ": mappings must be between 1 byte and 1GB.");
+            }
+            mapped = channel.map(writable? FileChannel.MapMode.READ_WRITE:
+                                           FileChannel.MapMode.READ_ONLY,
+                                 offset, mapSize);
+        } finally {
+            /* The mapping outlives the channel. */
+            channel.close();
+        }
+        long address = mapBuffer(mapped);
+        if (address == 0) {
+            UnsafeUtil.freeDirectBuffer(mapped);
+            throw new OutOfMemoryError("The Eta MemoryManager is unable to allocate more off-heap memory.");
+        }
+        MemoryManagerStats.fileMapped(mapped.capacity());
+        debugMemoryManager("Map File " + path + " @ " + address + " " +
+                           renderSize(mapped.capacity()) + ".");
+        return address;
+    }
+
+    /* Unmaps the file mapped at `address`. Returns false if there is none. The
+       mapping must not be accessed afterwards. */
+    public static boolean unmapFile(long address) {
+        if (!(mappedBuffers.get(address) instanceof MappedByteBuffer)) return false;
+        ByteBuffer mapped = unmapBuffer(address);
+        if (mapped == null) return false;
+        MemoryManagerStats.fileUnmapped(mapped.capacity());
+        debugMemoryManager("Unmap File @ " + address + " " +
+                           renderSize(mapped.capacity()) + ".");
+        UnsafeUtil.freeDirectBuffer(mapped);
+        return true;
+    }
+
+    private static MappedByteBuffer getMappedFile(long address) {
+        ByteBuffer mapped = mappedBuffers.get(address);
+        if (!(mapped instanceof MappedByteBuffer)) {
+            throw new IllegalArgumentException("No file is mapped @ " + address + ".");
+        }
+        return (MappedByteBuffer) mapped;
+    }
+
+    /* Hints that the whole mapping at `address` will be needed soon by paging it
+       into memory. */
+    public static void loadMappedFile(long address) {
+        getMappedFile(address).load();
+    }
+
+    /* Hints that `length` bytes at `address`, which can point anywhere into a
+       mapping, will be needed soon by touching each of their pages. */
+    public static void prefetchMappedFile(long address, int length) {
+        Map.Entry<Long, Integer> region = findMappedAddress(address);
+        if (region == null) {
+            throw new IllegalArgumentException("No file is mapped @ " + address + ".");
+        }
+        ByteBuffer mapped = mappedBuffers.get(region.getKey());
+        int start = (int)(address - region.getKey());
+        int end   = (int) Math.min((long) start + length, mapped.capacity());
+        byte sink = 0;
+        for (int i = start; i < end; i += PAGE_SIZE) {
+            sink ^= mapped.get(i);
+        }
+        if (end > start) {
+            sink ^= mapped.get(end - 1);
+        }
+        prefetchSink = sink;
+    }
+
+    /* Keeps the reads in prefetchMappedFile from being optimized away. */
+    private static volatile byte prefetchSink;
+
+    public static boolean isMappedFileLoaded(long address) {
+        return getMappedFile(address).isLoaded();
+    }
+
+    /* Writes any changes to a writable mapping back to the file. */
+    public static void syncMappedFile(long address) {
+        getMappedFile(address).force();
+    }
+
+    /* Helper function that will find the mapped buffer that contains `address`. */
+    private static Map.Entry<Long, Integer> findMappedAddress(long address) {
+        if (mappedBuffers.isEmpty()) return null;
+        int blockType  = blockType(address);
+        int indexBits  = indexBits(blockType);
+        long start     = blockAddress(blockType, blockIndex(address, indexBits));
+        ByteBuffer mapped = mappedBuffers.get(start);
+        if (mapped != null && positionIndex(address, indexBits) <= mapped.capacity()) {
+            return new AbstractMap.SimpleImmutableEntry<Long, Integer>
+                (start, mapped.capacity());
+        }
+        return null;
+    }
+
+    /* The free lists of a memory kind must only be modified while holding the
+       lock on its `freeBlocks`. */
     public static void insertFreeBlock
         (NavigableMap<Integer, Queue<Long>> freeBlocks,
          NavigableMap<Long, Integer> freeAddresses,
-         Map<Integer, SizeLock> sizeLocks,
-         AtomicBoolean sizeLocksLock,
          int newRegionSize, long newAddress) {
         assert newRegionSize > 0;
-        /* TODO: Implement block destroying to release memory when it's no longer
-                 needed. Currently, if your application suddenly allocates a lot
-                 of native memory, it will stay allocated for the lifetime of
-                 the application. */
         debugMemoryManager("Free Block @ " + newAddress + " " +
                            renderSize(newRegionSize) + ".");
-        /* TODO: Do we need to ensure atomicity of this entire function? */
-        SizeLock newSizeLock
-            = getSizeLock(sizeLocks, sizeLocksLock, newRegionSize);
-        while (!newSizeLock.tryStartTransaction()) {}
-        try {
-            Queue<Long> freeQueue = freeBlocks.get(newRegionSize);
-            if (freeQueue != null) {
-                freeQueue.offer(newAddress);
-                newSizeLock.enlarge();
-            } else {
-                freeQueue = new ConcurrentLinkedQueue<Long>();
-                freeQueue.offer(newAddress);
-                freeBlocks.put(newRegionSize, freeQueue);
-                /* FIXME: If reset() is not called, the INVARIANT [see above] breaks. */
-                newSizeLock.reset();
-            }
-        } finally {
-            newSizeLock.endTransaction();
+        Queue<Long> freeQueue = freeBlocks.get(newRegionSize);
+        if (freeQueue == null) {
+            freeQueue = new ConcurrentLinkedQueue<Long>();
+            freeBlocks.put(newRegionSize, freeQueue);
         }
+        freeQueue.offer(newAddress);
         freeAddresses.put(newAddress, newRegionSize);
     }
 
+    /* Removes the free block at `address` from the queue of its size, dropping
+       the queue if it was the last one. Returns false if the block wasn't
+       free. */
+    private static boolean removeFreeBlock
+        (NavigableMap<Integer, Queue<Long>> freeBlocks, int size, long address) {
+        Queue<Long> freeQueue = freeBlocks.get(size);
+        if (freeQueue == null || !freeQueue.remove(address)) return false;
+        if (freeQueue.isEmpty()) {
+            freeBlocks.remove(size);
+        }
+        return true;
+    }
+
+    /* Returned by createBlock when there's no room for more blocks of a type and
+       when the block would exceed the off-heap budget. Addresses of the larger
+       block types have the sign bit set, but they are never equal to these. */
+    private static final long NO_ROOM     = -1;
+    private static final long OVER_BUDGET = -2;
+
+    /* Adds a fresh block of the given type and returns its address, NO_ROOM or
+       OVER_BUDGET. Blocks that are
+       `indexed` are allocated from by the coalescing allocator. */
+    private static long createBlock(int blockType, boolean direct, boolean indexed) {
+        BlockTable blocks = blockTables[blockType];
+        if (blocks.isFull()) return NO_ROOM;
+        int blockSize = getBlockSize(blockType);
+        if (direct && !reserveOffHeapMemory(blockSize)) return OVER_BUDGET;
+        AllocationIndex index = indexed? new AllocationIndex(blockSize) : null;
+        BlockTable.Block block;
+        if (direct) {
+            block = newDirectBlock(blockSize, index);
+        } else {
+            ByteBuffer buffer = allocateAnonymousBuffer(blockSize, false);
+            block = new BlockTable.Block(buffer, buffer, index);
+        }
+        int blockIndex = blocks.add(block);
+        if (blockIndex < 0) {
+            UnsafeUtil.freeDirectBuffer(block.allocation);
+            if (direct) unreserveOffHeapMemory(blockSize);
+            return NO_ROOM;
+        }
+        debugMemoryManager("Create " + renderIsDirect(direct) + " Block " +
+                           renderSize(blockSize) + ".");
+        MemoryManagerStats.blockCreated(blockType);
+        return blockAddress(blockType, blockIndex);
+    }
+
+    public static final int PAGE_SIZE
+        = (UnsafeUtil.UNSAFE == null)? 4096 : UnsafeUtil.UNSAFE.pageSize();
+
+    /* Direct buffers are only as aligned as malloc makes them, so a direct block
+       is allocated with an extra page and starts at the first page boundary in
+       it. Since blocks start at multiples of their size, addresses in a direct
+       block are then aligned like their native addresses, up to PAGE_SIZE. */
+    private static BlockTable.Block newDirectBlock(int blockSize, AllocationIndex index) {
+        ByteBuffer allocation = allocateAnonymousBuffer(blockSize + PAGE_SIZE, true);
+        long nativeAddress = UnsafeUtil.directBufferAddress(allocation);
+        int  padding       = (int)(alignAddress(nativeAddress, PAGE_SIZE) - nativeAddress);
+        allocation.position(padding);
+        allocation.limit(padding + blockSize);
+        ByteBuffer buffer = allocation.slice();
+        allocation.clear();
+        return new BlockTable.Block(buffer, allocation, index);
+    }
+
+    /* Allocates a whole block that is managed by the caller rather than by the
+       free lists, like the slabs of the SizeClassAllocator. Returns 0 if there's no
+       room for it, in which case the caller should release its locks and call
+       awaitOffHeapMemory before trying again. */
+    public static long allocateBlock(int blockType, boolean direct) {
+        long address = createBlock(blockType, direct, false);
+        return (address == NO_ROOM || address == OVER_BUDGET)? 0 : address;
+    }
+
+    /** Off-Heap Budget **/
+
+    /* The memory taken up by direct blocks, which is what counts against the
+       off-heap budget. Heap blocks are bounded by the Java heap instead. */
+    public static final AtomicLong reservedOffHeapMemory = new AtomicLong();
+
+    private static final Object offHeapMemoryLock = new Object();
+
+    /* Incremented whenever memory may have become available, to wake up
+       allocations waiting for it. Guarded by offHeapMemoryLock. */
+    private static long offHeapMemoryGeneration;
+
+    private static boolean reserveOffHeapMemory(int size) {
+        long max = Runtime.getMaxOffHeapMemory();
+        long reserved;
+        do {
+            reserved = reservedOffHeapMemory.get();
+            if (max > 0 && reserved + size > max) return false;
+        } while (!reservedOffHeapMemory.compareAndSet(reserved, reserved + size));
+        if (reserved + size > Runtime.getOffHeapHighWater()) {
+            /* Start reclaiming before allocations have to wait for it. */
+            OffHeapReclaimer.request();
+        }
+        return true;
+    }
+
+    private static void unreserveOffHeapMemory(int size) {
+        reservedOffHeapMemory.addAndGet(-size);
+        offHeapMemoryFreed();
+    }
+
+    /* Wakes up allocations waiting in awaitOffHeapMemory. */
+    public static void offHeapMemoryFreed() {
+        synchronized (offHeapMemoryLock) {
+            offHeapMemoryGeneration++;
+            offHeapMemoryLock.notifyAll();
+        }
+    }
+
+    /* Waits until the OffHeapReclaimer may have made room for an allocation of `n`
+       bytes. Throws an OutOfMemoryError once `deadline` has passed.
+
+       NOTE: A TSO can't be suspended in the middle of a Java call, so it's the
+             thread that waits. Other threads keep running and can free memory in
+             the meantime. */
+    public static void awaitOffHeapMemory(long n, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new OutOfMemoryError("The Eta MemoryManager is unable to allocate " + n +
+                                       " bytes of off-heap memory: " +
+                                       reservedOffHeapMemory.get() + " bytes reserved" +
+                                       ((Runtime.getMaxOffHeapMemory() > 0)?
+                                        " of a maximum of " + Runtime.getMaxOffHeapMemory() +
+                                        " bytes." : "."));
+        }
+        MemoryManagerStats.allocationWaited();
+        synchronized (offHeapMemoryLock) {
+            long generation = offHeapMemoryGeneration;
+            OffHeapReclaimer.request();
+            try {
+                while (generation == offHeapMemoryGeneration && remaining > 0) {
+                    offHeapMemoryLock.wait(Math.max(1, remaining / 1000000));
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Returns the block that contains `address` or null if there is none. */
+    public static BlockTable.Block lookupBlock(long address) {
+        int blockType = blockType(address);
+        return blockTables[blockType].get(blockIndex(address, indexBits(blockType)));
+    }
+
+    /* Returns the whole block that contains `address`. */
+    public static ByteBuffer getBlock(long address) {
+        BlockTable.Block block = lookupBlock(address);
+        return (block == null)? null : block.buffer;
+    }
+
     public static ByteBuffer allocateAnonymousBuffer(int n, boolean direct) {
         return (direct?
                 /* Off-Heap Memory */
@@ -276,6 +818,8 @@ public class MemoryManager {
     /** Freeing Off-Heap Memory **/
 
     public static void maybeFreeNativeMemory() {
+        long start = System.nanoTime();
+
         /* Free memory blocks associated with ByteArrays if the ByteArray itself
            has been garbage collected. */
         IO.checkForGCByteArrays();
@@ -283,131 +827,117 @@ public class MemoryManager {
         /* Check for any WeakPtr keys that have been GC'd and run both the
            Eta finalizers and Java finalizers. */
         WeakPtr.checkForGCWeakPtrs();
+
+        /* Give memory in empty blocks back to the OS. */
+        maybeReleaseEmptyBlocks();
+
+        MemoryManagerStats.freedNativeMemory(System.nanoTime() - start);
     }
 
     public static void free(long address) {
-        NavigableMap<Integer, Queue<Long>> freeBlocks;
-        NavigableMap<Long, Integer> allocatedBlocks;
-        NavigableMap<Long, Integer> freeAddresses;
-        Map<Integer, SizeLock> sizeLocks;
-        AtomicBoolean sizeLocksLock;
-        Integer sizeInt = allocatedDirectBlocks.get(address);
-        boolean direct;
-        if (sizeInt == null) {
-            sizeInt = allocatedHeapBlocks.get(address);
-            if (sizeInt == null) {
-                /* This means that `address` was already freed. */
-                return;
-            } else {
-                allocatedBlocks = allocatedHeapBlocks;
-                /* Check if `address` was already freed. */
-                if (allocatedBlocks.remove(address) == null) {
-                    debugMemoryManager("Freed @ " + address + " " +
-                                       renderSize(sizeInt) + ".");
-                    return;
-                }
-                direct = false;
+        if (SizeClassAllocator.free(address)) return;
+        BlockTable.Block block = lookupBlock(address);
+        if (block == null || block.index == null) {
+            /* This means that `address` was already freed, unless it's a mapped
+               buffer or a large allocation. */
+            if (!unmapFile(address) && unmapBuffer(address) == null) {
+                freeLarge(address);
             }
+            return;
+        }
+        boolean direct = block.buffer.isDirect();
+        FreeQueue queue = localFreeQueue();
+        if (queue != null) {
+            queue.free(direct, address);
         } else {
-            allocatedBlocks = allocatedDirectBlocks;
-            /* Check if `address` was already freed. */
-            if (allocatedBlocks.remove(address) == null) {
-                debugMemoryManager("Freed @ " + address + " " + renderSize(sizeInt) +
-                                   ".");
-                return;
+            freeRegion(block, address, direct);
+        }
+    }
+
+    /* Frees `count` allocations of the coalescing allocator at the start of
+       `addresses`, taking the lock of the free lists only once. */
+    public static void freeRegions(boolean direct, long[] addresses, int count) {
+        synchronized (direct? freeDirectBlocks : freeHeapBlocks) {
+            for (int i = 0; i < count; i++) {
+                long address = addresses[i];
+                freeRegion(lookupBlock(address), address, direct);
             }
-            direct = true;
         }
-        debugMemoryManager("Free @ " + address + " " + renderSize(sizeInt) + ".");
-        int size = sizeInt.intValue();
+    }
+
+    private static FreeQueue localFreeQueue() {
+        if (Runtime.getFreeQueueSize() == 0) return null;
+        Capability cap = Capability.getLocalIfPresent();
+        return (cap == null)? null : cap.freeQueue;
+    }
+
+    /* Returns the frees that the current Capability has queued to the free lists
+       so that an allocation can use the space. Returns false if there were
+       none. */
+    private static boolean drainLocalFreeQueue(boolean direct) {
+        FreeQueue queue = localFreeQueue();
+        return queue != null && queue.drain(direct);
+    }
+
+    private static void freeRegion(BlockTable.Block block, long address, boolean direct) {
+        NavigableMap<Integer, Queue<Long>> freeBlocks;
+        NavigableMap<Long, Integer> freeAddresses;
         if (direct) {
             freeAddresses   = freeDirectAddresses;
             freeBlocks      = freeDirectBlocks;
-            sizeLocks       = directSizeLocks;
-            sizeLocksLock   = directSizeLocksLock;
         } else {
             freeAddresses   = freeHeapAddresses;
             freeBlocks      = freeHeapBlocks;
-            sizeLocks       = heapSizeLocks;
-            sizeLocksLock   = heapSizeLocksLock;
-        }
-        long lowerAddress  = 0L;
-        int  lowerSize     = 0;
-        long higherAddress = 0L;
-        int  higherSize    = 0;
-        Map.Entry<Long, Integer> lowerEntry  = freeAddresses.lowerEntry(address);
-        Map.Entry<Long, Integer> higherEntry = freeAddresses.higherEntry(address);
-        if (lowerEntry != null) {
-            lowerAddress  = lowerEntry.getKey();
-            lowerSize     = lowerEntry.getValue();
-        }
-        if (higherEntry != null) {
-            higherAddress = higherEntry.getKey();
-            higherSize    = higherEntry.getValue();
-        }
-        long newAddress    = address;
-        int  newSize       = size;
-        SizeLock lowerRegionLock  = null;
-        SizeLock higherRegionLock = null;
-
-        /* After these two checks, lowerAddress will be the starting
-           point of the new freeBlock and size will be the size of
-           the new block. */
-        try {
-            if ((lowerAddress + lowerSize) == address && sameBlock(lowerAddress, address)) {
-                lowerRegionLock = getSizeLock(sizeLocks, sizeLocksLock, lowerSize);
-                while (!lowerRegionLock.tryStartTransaction()) {}
+        }
+        synchronized (freeBlocks) {
+            /* Check if `address` was already freed. */
+            if (!block.index.clear(positionIndex(address))) {
+                debugMemoryManager("Freed @ " + address + ".");
+                return;
+            }
+            int n = readHeader(block, address);
+            debugMemoryManager("Free @ " + address + " " + renderSize(n) + ".");
+            MemoryManagerStats.freed(address, n);
+            /* From here on, `address` and `size` refer to the region of the
+               allocation, including its header. */
+            address -= HEADER_SIZE;
+            int size = regionSize(n);
+            long lowerAddress  = 0L;
+            int  lowerSize     = 0;
+            long higherAddress = 0L;
+            int  higherSize    = 0;
+            Map.Entry<Long, Integer> lowerEntry  = freeAddresses.lowerEntry(address);
+            Map.Entry<Long, Integer> higherEntry = freeAddresses.higherEntry(address);
+            if (lowerEntry != null) {
+                lowerAddress  = lowerEntry.getKey();
+                lowerSize     = lowerEntry.getValue();
+            }
+            if (higherEntry != null) {
+                higherAddress = higherEntry.getKey();
+                higherSize    = higherEntry.getValue();
+            }
+            long newAddress    = address;
+            int  newSize       = size;
+
+            /* After these two checks, newAddress will be the starting point of
+               the new free block and newSize will be its size. The entry of a
+               lower neighbour in freeAddresses is overwritten below. */
+            if ((lowerAddress + lowerSize) == address && sameBlock(lowerAddress, address)
+                && removeFreeBlock(freeBlocks, lowerSize, lowerAddress)) {
                 newAddress = lowerAddress;
                 newSize   += lowerSize;
             }
-            if ((address + size) == higherAddress && sameBlock(address, higherAddress)) {
-                if (lowerRegionLock != null && lowerSize == higherSize) {
-                    higherRegionLock = lowerRegionLock;
-                } else {
-                    higherRegionLock = getSizeLock(sizeLocks, sizeLocksLock, higherSize);
-                    while (!higherRegionLock.tryStartTransaction()) {}
-                }
+            if ((address + size) == higherAddress && sameBlock(address, higherAddress)
+                && removeFreeBlock(freeBlocks, higherSize, higherAddress)) {
+                freeAddresses.remove(higherAddress);
                 newSize += higherSize;
             }
-            Queue<Long> freeQueue;
-            if (lowerRegionLock  != null) {
-                freeQueue = freeBlocks.get(lowerSize);
-                /* If the free block was taken by the time we got the lock. */
-                if (freeQueue == null) {
-                    newAddress = address;
-                    newSize   -= lowerSize;
-                } else {
-                    /* If the free block was taken by the time we got the lock. */
-                    if (!freeQueue.remove(lowerAddress)) {
-                        newAddress = address;
-                        newSize   -= lowerSize;
-                    } else {
-                        /* Success, remove a permit */
-                        lowerRegionLock.unconditionalAcquire();
-                    }
-                }
-            }
-            if (higherRegionLock != null) {
-                freeQueue = freeBlocks.get(higherSize);
-                /* If the free block was taken by the time we got the lock. */
-                if (freeQueue == null) {
-                    newSize -= higherSize;
-                } else {
-                    /* If the free block was taken by the time we got the lock. */
-                    if (!freeQueue.remove(lowerAddress)) {
-                        newSize -= higherSize;
-                    } else {
-                        /* Success, remove a permit */
-                        higherRegionLock.unconditionalAcquire();
-                    }
-                }
+            insertFreeBlock(freeBlocks, freeAddresses, newSize, newAddress);
+            if (positionIndex(newAddress) == 0 &&
+                newSize == getBlockSize(blockType(newAddress))) {
+                recordEmptyBlock(newAddress);
             }
-        } finally {
-            if (lowerRegionLock  != null) lowerRegionLock.endTransaction();
-            if (higherRegionLock != null && higherRegionLock != lowerRegionLock) higherRegionLock.endTransaction();
         }
-        insertFreeBlock(freeBlocks, freeAddresses, sizeLocks, sizeLocksLock,
-                        newSize, newAddress);
     }
 
     /* FIXME: For some reason, cleanup() causes bugs in the future invocations
@@ -415,17 +945,23 @@ public class MemoryManager {
     /* This is dangerous if done at any time other than shutdown.
        It will wipe out all information and free any remaining data. */
     public static void cleanup() {
+        SizeClassAllocator.cleanup();
         freeDirectBlocks.clear();
         freeHeapBlocks.clear();
-        for (List l: blockArrays) {
-            l.clear();
+        for (BlockTable blocks: blockTables) {
+            blocks.clear();
+        }
+        emptyBlocks.clear();
+        emptyBlockBytes.set(0);
+        for (ByteBuffer mapped: mappedBuffers.values()) {
+            UnsafeUtil.freeDirectBuffer(mapped);
         }
-        allocatedDirectBlocks.clear();
-        allocatedHeapBlocks.clear();
+        mappedBuffers.clear();
+        largeAllocations.clear();
+        reservedOffHeapMemory.set(0);
+        MemoryManagerStats.reset();
         freeDirectAddresses.clear();
         freeHeapAddresses.clear();
-        directSizeLocks.clear();
-        heapSizeLocks.clear();
     }
 
     /** Addresses
@@ -465,6 +1001,11 @@ public class MemoryManager {
         else throw new IllegalArgumentException("Cannot allocate a block size greater than 1GB!");
     }
 
+    public static long blockAddress(int blockType, long blockIndex) {
+        return ((long) blockType << BLOCK_TYPE_BITS)
+             | (blockIndex << indexBits(blockType));
+    }
+
     public static int getBlockSize(int blockType) {
         switch (blockType) {
             case 0: return ONE_MB;
@@ -511,77 +1052,94 @@ public class MemoryManager {
 
     /** Byte Buffer API to MemoryManager **/
 
-    /*  This caches the last lookup for reducing the constant factor when
-        you're doing a lot of writes/reads on a single buffer (the common case). */
-    private static class ThreadLocalLong extends ThreadLocal<Long> {
-        protected Long initialValue() {
-            return new Long(0L);
-        }
-    }
+    /** Raw Memory Access **/
 
-    /* Start of previous received block. */
-    public static ThreadLocal<Long> cachedLowerAddress = new ThreadLocalLong();
+    /*  Reads and writes go straight to the memory of a block through Unsafe
+        instead of through its ByteBuffer, see BlockTable.Block.
 
-    /* Start of the adjacent block.
-       NOTE: This is the start of the NEXT block so you must do a strict comparison. */
-    public static ThreadLocal<Long> cachedHigherAddress = new ThreadLocalLong();
+        ByteBuffers are big-endian, so values are byte-swapped on little-endian
+        platforms to keep both access modes interchangeable. */
+    private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
 
-    /* The cached buffer */
-    public static ThreadLocal<ByteBuffer> cachedBuffer = new ThreadLocal<ByteBuffer>();
+    private static final boolean BIG_ENDIAN =
+        ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
 
-    /* The shared empty buffer */
-    public final static ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
-    
-    public static ByteBuffer getBuffer(long address) {
-        if (address == 0)
-            return emptyBuffer;
-        if (address >= cachedLowerAddress.get() && address < cachedHigherAddress.get()) {
-            ByteBuffer cached = cachedBuffer.get();
-            if (cached != null) {
-                return cached;
-            }
-        }
+    private static final long BYTE_ARRAY_OFFSET =
+        (UNSAFE == null)? 0 : UNSAFE.arrayBaseOffset(byte[].class);
+
+    /* Returns the block to access `size` bytes at `address` through Unsafe, or
+       null if it must go through getBuffer. Writes to read-only blocks go through
+       getBuffer so that they throw instead of crashing the JVM. */
+    private static BlockTable.Block rawBlock(long address, int size, boolean write) {
         int blockType  = blockType(address);
         int indexBits  = indexBits(blockType);
-        int blockIndex = blockIndex(address, indexBits);
-        long lower = (blockType << BLOCK_TYPE_BITS) | (blockIndex << indexBits);
-        AtomicBoolean blockLock = blockLocks[blockType];
-        ByteBuffer buf = null;
-        if (blockLock.compareAndSet(false, true)) {
-            try {
-                buf = (ByteBuffer) blockArrays[blockType].get(blockIndex);
-            } finally {
-                blockLock.set(false);
-            }
+        BlockTable.Block block
+            = blockTables[blockType].get(blockIndex(address, indexBits));
+        if (block == null || block.offset == 0 || (write && block.readOnly)) return null;
+        if (Runtime.debugMemoryAccess()) {
+            checkBounds(address, size);
+        } else if (positionIndex(address, indexBits) + size > block.buffer.capacity()) {
+            /* Let the ByteBuffer throw for accesses that run off the block. */
+            return null;
         }
-        cachedLowerAddress.set(lower);
-        cachedHigherAddress.set(lower + (1 << indexBits));
-        cachedBuffer.set(buf);
-        return buf;
+        return block;
+    }
+
+    private static long rawOffset(BlockTable.Block block, long address) {
+        return block.offset + positionIndex(address);
     }
 
-    /* Helper function that will find an allocated block below the one given. */
-    private static Map.Entry<Long, Integer>
-        findLowerAllocatedAddress(NavigableMap<Long, Integer> allocatedBlocks
-                                 ,long address) {
-        Map.Entry<Long, Integer>
-            lowerEntry = allocatedBlocks.floorEntry(Long.valueOf(address));
-        if (lowerEntry != null &&
-            (address <= (lowerEntry.getKey() + lowerEntry.getValue()))) {
-            return lowerEntry;
+    /* Checks that `size` bytes at `address` lie within a single live allocation. */
+    public static void checkBounds(long address, int size) {
+        long start;
+        long allocated;
+        SizeClassAllocator.Slab slab = SizeClassAllocator.lookupSlab(address);
+        Map.Entry<Long, Long> large;
+        if (slab != null) {
+            int slot  = (int)(address - slab.address) >>> slab.slotBits;
+            start     = slab.address + ((long) slot << slab.slotBits);
+            allocated = slab.isLive(slot)? slab.size(slot) : -1;
+        } else if ((large = findLargeAllocation(address)) != null) {
+            start     = large.getKey();
+            allocated = large.getValue();
+        } else {
+            Map.Entry<Long, Integer> entry = findAllocatedAddress(address);
+            start     = (entry == null)? address : entry.getKey();
+            allocated = (entry == null)? -1 : entry.getValue();
+        }
+        if (allocated < 0) {
+            throw new IllegalStateException("The block that corresponds to the address "+
+                                            address+" is not allocated in memory");
+        }
+        if (address + size > start + allocated) {
+            throw new IndexOutOfBoundsException("Access of " + size + " bytes @ " +
+                                                address + " overruns the allocation @ " +
+                                                start + " of " + allocated + " bytes");
         }
-        return null;
     }
 
+    /* The shared empty buffer */
+    public final static ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+    
+    public static ByteBuffer getBuffer(long address) {
+        if (address == 0)
+            return emptyBuffer;
+        return getBlock(address);
+    }
 
+    /* Returns the allocation that contains `address` along with its size, or null
+       if there is none. */
     public static Map.Entry<Long, Integer> findAllocatedAddress(long address) {
-        Map.Entry<Long, Integer>
-            lowerEntry = findLowerAllocatedAddress(allocatedDirectBlocks, address);
-        if (lowerEntry == null) {
-            lowerEntry = findLowerAllocatedAddress(allocatedHeapBlocks, address);
+        BlockTable.Block block = lookupBlock(address);
+        if (block != null && block.index != null) {
+            long start = findAllocation(block, address);
+            if (start == 0) return null;
+            return new AbstractMap.SimpleImmutableEntry<Long, Integer>
+                (start, readHeader(block, start));
         }
-        return lowerEntry;
+        return findMappedAddress(address);
     }
+
     /* When doing bulk operations, this can be useful. It returns a ByteBuffer
        positioned at the place referred to by the address. It's duplicated so the
        user is free to change the position as necessary.
@@ -590,102 +1148,423 @@ public class MemoryManager {
     public static ByteBuffer getBoundedBuffer(long address) {
         if (address == 0)
             return emptyBuffer;
-        Map.Entry<Long, Integer>
-            lowerEntry = findAllocatedAddress(address);
-        if (lowerEntry == null) {
-            throw new IllegalStateException("The block that corresponds to the address "+
-                                            address+" is not allocated in memory");
-        }
-        long lowerAddress       = lowerEntry.getKey();
-        int  lowerSize          = lowerEntry.getValue();
-        int blockType           = blockType(address);
-        int indexBits           = indexBits(blockType);
-        int blockIndex          = blockIndex(address, indexBits);
-        int positionIndex       = positionIndex(address, indexBits);
-        int size                = (int)(lowerAddress + lowerSize - address);
-        ByteBuffer buf          = null;
-        AtomicBoolean blockLock = blockLocks[blockType];
-        if (blockLock.compareAndSet(false, true)) {
-            try {
-                buf = ((ByteBuffer) blockArrays[blockType].get(blockIndex)).duplicate();
-            } finally {
-                blockLock.set(false);
-            }
-        }
+        int size = boundedSize(address);
+        if (size == 0) return emptyBuffer;
+        int positionIndex = positionIndex(address);
+        ByteBuffer buf    = getBlock(address).duplicate();
         buf.position(positionIndex);
         buf.limit(positionIndex + size);
         return buf;
     }
 
+    /* Returns the number of bytes from `address` to the end of its allocation, but
+       no further than the end of its block, which only matters for a large
+       allocation.
+
+       Throws an exception if the block that corresponds to the address has been freed. */
+    private static int boundedSize(long address) {
+        SizeClassAllocator.Slab slab = SizeClassAllocator.lookupSlab(address);
+        if (slab != null) {
+            int size = SizeClassAllocator.boundedSize(slab, address);
+            if (size < 0) {
+                throw new IllegalStateException("The block that corresponds to the address "+
+                                                address+" is not allocated in memory");
+            }
+            return size;
+        }
+        BlockTable.Block block = lookupBlock(address);
+        long start = 0;
+        long size  = 0;
+        if (block != null && block.index != null) {
+            start = findAllocation(block, address);
+            if (start != 0) {
+                size = readHeader(block, start);
+            }
+        } else {
+            Map.Entry<Long, Long> large = findLargeAllocation(address);
+            Map.Entry<Long, Integer> mapped;
+            if (large != null) {
+                /* The end of a large allocation that fills its last block. */
+                if (block == null) return 0;
+                start = large.getKey();
+                size  = large.getValue();
+            } else if ((mapped = findMappedAddress(address)) != null) {
+                start = mapped.getKey();
+                size  = mapped.getValue();
+            }
+        }
+        if (start == 0) {
+            throw new IllegalStateException("The block that corresponds to the address "+
+                                            address+" is not allocated in memory");
+        }
+        /* A large allocation goes on in the following blocks. */
+        return (int) Math.min(block.buffer.capacity() - positionIndex(address),
+                              start + size - address);
+    }
+
     /* This returns -1 if `address` has already been freed. */
     public static int allocatedSize(long address) {
-        Integer sizeInt = allocatedDirectBlocks.get(address);
-        if (sizeInt == null) {
-            sizeInt = allocatedHeapBlocks.get(address);
-            if (sizeInt == null) {
-                return -1;
-            }
+        SizeClassAllocator.Slab slab = SizeClassAllocator.lookupSlab(address);
+        if (slab != null) {
+            return SizeClassAllocator.allocatedSize(slab, address);
+        }
+        BlockTable.Block block = lookupBlock(address);
+        if (block != null && block.index != null) {
+            return block.index.isSet(positionIndex(address))?
+                readHeader(block, address) : -1;
+        }
+        ByteBuffer mapped = mappedBuffers.get(address);
+        if (mapped != null) return mapped.capacity();
+        /* Large allocations of 2GB or more can only be made from Java, which can
+           look up their size in largeAllocations. */
+        Long large = largeAllocations.get(address);
+        return (large == null)? -1 : (int) Math.min(large, Integer.MAX_VALUE);
+    }
+
+
+    /* Whether `size` bytes at `address` run into the next block of a large
+       allocation. Only 1GB blocks have positions this high. */
+    private static boolean straddles(long address, int size) {
+        return positionIndex(address) > ONE_GB - size &&
+               findLargeAllocation(address + size) != null;
+    }
+
+    /* Reads a big-endian value of `size` bytes a byte at a time. */
+    private static long getStraddling(long address, int size) {
+        long val = 0;
+        for (int i = 0; i < size; i++) {
+            val = (val << 8) | (get(address + i) & 0xFF);
         }
-        return sizeInt.intValue();
+        return val;
     }
 
+    private static void putStraddling(long address, int size, long val) {
+        for (int i = size - 1; i >= 0; i--) {
+            put(address + i, (byte) val);
+            val >>>= 8;
+        }
+    }
 
     /** Read APIs **/
     public static byte get(long address) {
+        BlockTable.Block block = rawBlock(address, 1, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            return UNSAFE.getByte(block.base, offset);
+        }
         return getBuffer(address).get(positionIndex(address));
     }
 
     public static short getShort(long address) {
+        BlockTable.Block block = rawBlock(address, 2, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            short val = UNSAFE.getShort(block.base, offset);
+            return BIG_ENDIAN? val : Short.reverseBytes(val);
+        }
+        if (straddles(address, 2)) return (short) getStraddling(address, 2);
         return getBuffer(address).getShort(positionIndex(address));
     }
 
     public static char getChar(long address) {
+        BlockTable.Block block = rawBlock(address, 2, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            char val = UNSAFE.getChar(block.base, offset);
+            return BIG_ENDIAN? val : Character.reverseBytes(val);
+        }
+        if (straddles(address, 2)) return (char) getStraddling(address, 2);
         return getBuffer(address).getChar(positionIndex(address));
     }
 
     public static int getInt(long address) {
+        BlockTable.Block block = rawBlock(address, 4, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            int val = UNSAFE.getInt(block.base, offset);
+            return BIG_ENDIAN? val : Integer.reverseBytes(val);
+        }
+        if (straddles(address, 4)) return (int) getStraddling(address, 4);
         return getBuffer(address).getInt(positionIndex(address));
     }
 
     public static long getLong(long address) {
+        BlockTable.Block block = rawBlock(address, 8, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            long val = UNSAFE.getLong(block.base, offset);
+            return BIG_ENDIAN? val : Long.reverseBytes(val);
+        }
+        if (straddles(address, 8)) return getStraddling(address, 8);
         return getBuffer(address).getLong(positionIndex(address));
     }
 
     public static float getFloat(long address) {
+        BlockTable.Block block = rawBlock(address, 4, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            int val = UNSAFE.getInt(block.base, offset);
+            return Float.intBitsToFloat(BIG_ENDIAN? val : Integer.reverseBytes(val));
+        }
+        if (straddles(address, 4)) {
+            return Float.intBitsToFloat((int) getStraddling(address, 4));
+        }
         return getBuffer(address).getFloat(positionIndex(address));
     }
 
     public static double getDouble(long address) {
+        BlockTable.Block block = rawBlock(address, 8, false);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            long val = UNSAFE.getLong(block.base, offset);
+            return Double.longBitsToDouble(BIG_ENDIAN? val : Long.reverseBytes(val));
+        }
+        if (straddles(address, 8)) {
+            return Double.longBitsToDouble(getStraddling(address, 8));
+        }
         return getBuffer(address).getDouble(positionIndex(address));
     }
 
     /** Write APIs **/
     public static void put(long address, byte val) {
-        getBuffer(address).put(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 1, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            UNSAFE.putByte(block.base, offset, val);
+        } else {
+            getBuffer(address).put(positionIndex(address), val);
+        }
     }
 
     public static void putShort(long address, short val) {
-        getBuffer(address).putShort(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 2, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            UNSAFE.putShort(block.base, offset, BIG_ENDIAN? val : Short.reverseBytes(val));
+        } else if (straddles(address, 2)) {
+            putStraddling(address, 2, val);
+        } else {
+            getBuffer(address).putShort(positionIndex(address), val);
+        }
     }
 
     public static void putChar(long address, char val) {
-        getBuffer(address).putChar(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 2, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            UNSAFE.putChar(block.base, offset, BIG_ENDIAN? val : Character.reverseBytes(val));
+        } else if (straddles(address, 2)) {
+            putStraddling(address, 2, val);
+        } else {
+            getBuffer(address).putChar(positionIndex(address), val);
+        }
     }
 
     public static void putInt(long address, int val) {
-        getBuffer(address).putInt(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 4, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            UNSAFE.putInt(block.base, offset, BIG_ENDIAN? val : Integer.reverseBytes(val));
+        } else if (straddles(address, 4)) {
+            putStraddling(address, 4, val);
+        } else {
+            getBuffer(address).putInt(positionIndex(address), val);
+        }
     }
 
     public static void putLong(long address, long val) {
-        getBuffer(address).putLong(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 8, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            UNSAFE.putLong(block.base, offset, BIG_ENDIAN? val : Long.reverseBytes(val));
+        } else if (straddles(address, 8)) {
+            putStraddling(address, 8, val);
+        } else {
+            getBuffer(address).putLong(positionIndex(address), val);
+        }
     }
 
     public static void putFloat(long address, float val) {
-        getBuffer(address).putFloat(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 4, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            int bits = Float.floatToRawIntBits(val);
+            UNSAFE.putInt(block.base, offset, BIG_ENDIAN? bits : Integer.reverseBytes(bits));
+        } else if (straddles(address, 4)) {
+            putStraddling(address, 4, Float.floatToRawIntBits(val));
+        } else {
+            getBuffer(address).putFloat(positionIndex(address), val);
+        }
     }
 
     public static void putDouble(long address, double val) {
-        getBuffer(address).putDouble(positionIndex(address), val);
+        BlockTable.Block block = rawBlock(address, 8, true);
+        if (block != null) {
+            long offset = rawOffset(block, address);
+            long bits = Double.doubleToRawLongBits(val);
+            UNSAFE.putLong(block.base, offset, BIG_ENDIAN? bits : Long.reverseBytes(bits));
+        } else if (straddles(address, 8)) {
+            putStraddling(address, 8, Double.doubleToRawLongBits(val));
+        } else {
+            getBuffer(address).putDouble(positionIndex(address), val);
+        }
+    }
+
+    /** Bulk Operations **/
+
+    /* These work a block at a time, so they can cover a large allocation, and go
+       through Unsafe when raw access is available for the blocks involved. Either
+       way, the ranges are checked against their allocations first. */
+
+    /* Copies `n` bytes from `srcAddress` to `destAddress`. The ranges may overlap,
+       like with memmove. */
+    public static void copy(long srcAddress, long destAddress, long n) {
+        if (n <= 0 || srcAddress == destAddress) return;
+        if (destAddress > srcAddress && destAddress < srcAddress + n) {
+            /* Copy from the end so that the source isn't overwritten before it's
+               read. Within a chunk, overlap is handled by the copy itself. */
+            while (n > 0) {
+                int chunk = (int) Math.min(n, Math.min(positionIndex(srcAddress + n - 1),
+                                                       positionIndex(destAddress + n - 1)) + 1);
+                n -= chunk;
+                checkBulkAccess(srcAddress + n, chunk);
+                checkBulkAccess(destAddress + n, chunk);
+                copyChunk(srcAddress + n, destAddress + n, chunk);
+            }
+            return;
+        }
+        while (n > 0) {
+            int chunk = (int) Math.min(n, Math.min(boundedSize(srcAddress),
+                                                   boundedSize(destAddress)));
+            if (chunk == 0) {
+                throw overrun((boundedSize(srcAddress) == 0)? srcAddress : destAddress, n);
+            }
+            copyChunk(srcAddress, destAddress, chunk);
+            srcAddress  += chunk;
+            destAddress += chunk;
+            n           -= chunk;
+        }
+    }
+
+    /* Copies `n` bytes that have been checked to lie within a single allocation
+       and block at both ends. */
+    private static void copyChunk(long srcAddress, long destAddress, int n) {
+        BlockTable.Block src  = lookupBlock(srcAddress);
+        BlockTable.Block dest = lookupBlock(destAddress);
+        if (src.offset != 0 && dest.offset != 0 && !dest.readOnly) {
+            UNSAFE.copyMemory(src.base, rawOffset(src, srcAddress),
+                              dest.base, rawOffset(dest, destAddress), n);
+        } else {
+            ByteBuffer srcBuf  = src.buffer.duplicate();
+            ByteBuffer destBuf = dest.buffer.duplicate();
+            srcBuf.position(positionIndex(srcAddress));
+            srcBuf.limit(srcBuf.position() + n);
+            destBuf.position(positionIndex(destAddress));
+            destBuf.put(srcBuf);
+        }
+    }
+
+    /* Copies `n` bytes at `address` into `dest` starting at `offset`. */
+    public static void copyToArray(long address, byte[] dest, int offset, int n) {
+        checkArrayRange(dest, offset, n);
+        while (n > 0) {
+            int chunk = Math.min(n, boundedSize(address));
+            if (chunk == 0) throw overrun(address, n);
+            BlockTable.Block src = lookupBlock(address);
+            if (src.offset != 0) {
+                UNSAFE.copyMemory(src.base, rawOffset(src, address),
+                                  dest, BYTE_ARRAY_OFFSET + offset, chunk);
+            } else {
+                ByteBuffer buf = src.buffer.duplicate();
+                buf.position(positionIndex(address));
+                buf.get(dest, offset, chunk);
+            }
+            address += chunk;
+            offset  += chunk;
+            n       -= chunk;
+        }
+    }
+
+    /* Copies `n` bytes of `src` starting at `offset` to `address`. */
+    public static void copyFromArray(byte[] src, int offset, long address, int n) {
+        checkArrayRange(src, offset, n);
+        while (n > 0) {
+            int chunk = Math.min(n, boundedSize(address));
+            if (chunk == 0) throw overrun(address, n);
+            BlockTable.Block dest = lookupBlock(address);
+            if (dest.offset != 0 && !dest.readOnly) {
+                UNSAFE.copyMemory(src, BYTE_ARRAY_OFFSET + offset,
+                                  dest.base, rawOffset(dest, address), chunk);
+            } else {
+                ByteBuffer buf = dest.buffer.duplicate();
+                buf.position(positionIndex(address));
+                buf.put(src, offset, chunk);
+            }
+            address += chunk;
+            offset  += chunk;
+            n       -= chunk;
+        }
+    }
+
+    /* Sets `n` bytes at `address` to `val`. */
+    public static void fill(long address, byte val, long n) {
+        while (n > 0) {
+            int chunk = (int) Math.min(n, boundedSize(address));
+            if (chunk == 0) throw overrun(address, n);
+            BlockTable.Block dest = lookupBlock(address);
+            if (dest.offset != 0 && !dest.readOnly) {
+                fillRaw(dest.base, rawOffset(dest, address), chunk, val);
+            } else {
+                ByteBuffer buf = dest.buffer.duplicate();
+                int position = positionIndex(address);
+                if (buf.hasArray()) {
+                    int start = buf.arrayOffset() + position;
+                    Arrays.fill(buf.array(), start, start + chunk, val);
+                } else {
+                    buf.position(position);
+                    for (int i = 0; i < chunk; i++) {
+                        buf.put(val);
+                    }
+                }
+            }
+            address += chunk;
+            n       -= chunk;
+        }
+    }
+
+    /* Unsafe.setMemory stores a word at a time, which is slower than copying
+       for all but short ranges, so only the start of the range is set and then
+       copied over the rest of it in doubling steps. */
+    private static final int FILL_PREFIX_SIZE = 256;
+    private static final int FILL_STEP_SIZE   = 16 * 1024;
+
+    private static void fillRaw(Object base, long offset, int n, byte val) {
+        int filled = Math.min(n, FILL_PREFIX_SIZE);
+        UNSAFE.setMemory(base, offset, filled, val);
+        while (filled < n) {
+            int step = Math.min(Math.min(filled, FILL_STEP_SIZE), n - filled);
+            UNSAFE.copyMemory(base, offset, base, offset + filled, step);
+            filled += step;
+        }
+    }
+
+    /* Throws unless `n` bytes at `address` lie within a single allocation and
+       block. */
+    private static void checkBulkAccess(long address, int n) {
+        if (boundedSize(address) < n) throw overrun(address, n);
+    }
+
+    private static IndexOutOfBoundsException overrun(long address, long n) {
+        return new IndexOutOfBoundsException("Access of " + n + " bytes @ " + address +
+                                             " overruns its allocation");
+    }
+
+    private static void checkArrayRange(byte[] array, int offset, int n) {
+        if (offset < 0 || n < 0 || offset > array.length - n) {
+            throw new IndexOutOfBoundsException("Access of " + n + " bytes @ " + offset +
+                                                " overruns an array of " + array.length +
+                                                " bytes");
+        }
     }
 
     /** Monitoring **/
@@ -710,6 +1589,32 @@ public class MemoryManager {
         }
     }
 
+    private static void printAllocations(String heading, boolean direct) {
+        printHeading(heading);
+
+        boolean none = true;
+        for (int blockType = 0; blockType < blockTables.length; blockType++) {
+            BlockTable blocks = blockTables[blockType];
+            for (int blockIndex = 0; blockIndex < blocks.size(); blockIndex++) {
+                BlockTable.Block block = blocks.get(blockIndex);
+                if (block == null || block.index == null ||
+                    block.buffer.isDirect() != direct) continue;
+                long blockAddress = blockAddress(blockType, blockIndex);
+                for (int position = block.index.findNextStart(0); position >= 0;
+                     position = block.index.findNextStart(position + AllocationIndex.GRANULE)) {
+                    long address = blockAddress + position;
+                    int  size    = readHeader(block, address);
+                    System.out.println(address + "-" + (address + size - 1) +
+                                       " [" + size + " bytes]");
+                    none = false;
+                }
+            }
+        }
+        if (none) {
+            System.out.println("None");
+        }
+    }
+
     private static void printBlocksMap(String heading, Map<Integer,Queue<Long>> blocks) {
         printHeading(heading);
 
@@ -732,12 +1637,14 @@ public class MemoryManager {
 
     public static void dumpMemoryManager() {
         System.out.println("***Eta-Managed Off-Heap Memory***");
-        printAddressMap("Allocated Direct Blocks", allocatedDirectBlocks);
-        printAddressMap("Allocated Heap Blocks", allocatedHeapBlocks);
+        printAllocations("Allocated Direct Blocks", true);
+        printAllocations("Allocated Heap Blocks", false);
         printAddressMap("Free Direct Addresses", freeDirectAddresses);
         printAddressMap("Free Heap Addresses", freeHeapAddresses);
         printBlocksMap("Free Direct Blocks", freeDirectBlocks);
         printBlocksMap("Free Heap Blocks", freeHeapBlocks);
+        printHeading("Slabs");
+        SizeClassAllocator.dumpSlabs();
     }
 
     /** Misc. Utilities **/
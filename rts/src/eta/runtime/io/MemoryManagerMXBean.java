@@ -0,0 +1,40 @@
+package eta.runtime.io;
+
+/* The management interface of the MemoryManager, registered under
+   eta.runtime:type=MemoryManager when the RTS is run with --jmx. Sizes are in
+   bytes and times are in nanoseconds. */
+public interface MemoryManagerMXBean {
+
+    /* Indexed by block type: 1MB, 16MB, 128MB and 1GB. */
+    long[] getBlockCounts();
+    long[] getAllocatedBytesPerBlockType();
+    long[] getFreeBytesPerBlockType();
+
+    long getReservedBytes();
+    long getReservedOffHeapBytes();
+    long getAllocatedBytes();
+    long getFreeBytes();
+    long getLargestFreeExtent();
+    double getFragmentation();
+
+    long getMappedFiles();
+    long getMappedBytes();
+
+    long getAllocations();
+    long getFrees();
+    double getAllocationRate();
+    double getFreeRate();
+
+    long getBlocksCreated();
+    long getBlocksReleased();
+
+    /* The number of times an allocation had to wait for off-heap memory. */
+    long getAllocationWaits();
+
+    long getFreeNativeMemoryCalls();
+    long getFreeNativeMemoryTime();
+
+    /* Lists up to `limit` allocation sites with the most live memory when the
+       RTS is run with --leak-detector, see LeakDetector. */
+    String dumpAllocationSites(int limit);
+}
@@ -0,0 +1,331 @@
+package eta.runtime.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import eta.runtime.util.StripedCounter;
+import static eta.runtime.io.MemoryManager.*;
+
+/* Counters that are kept for the MemoryManager at all times. They're updated on
+   every allocation and free, so they're striped to keep threads from contending
+   on them. */
+public final class MemoryManagerStats implements MemoryManagerMXBean {
+
+    private static final int NUM_BLOCK_TYPES = 4;
+
+    private static final StripedCounter[] allocatedBytes = new StripedCounter[NUM_BLOCK_TYPES];
+
+    static {
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            allocatedBytes[i] = new StripedCounter();
+        }
+    }
+
+    private static final StripedCounter allocations = new StripedCounter();
+    private static final StripedCounter frees       = new StripedCounter();
+
+    private static final AtomicLongArray blocks = new AtomicLongArray(NUM_BLOCK_TYPES);
+    private static final AtomicLong blocksCreated  = new AtomicLong();
+    private static final AtomicLong blocksReleased = new AtomicLong();
+
+    private static final AtomicLong mappedFiles = new AtomicLong();
+    private static final AtomicLong mappedBytes = new AtomicLong();
+
+    private static final AtomicLong allocationWaits = new AtomicLong();
+
+    private static final AtomicLong freeNativeMemoryCalls = new AtomicLong();
+    private static final AtomicLong freeNativeMemoryTime  = new AtomicLong();
+
+    private static volatile long startTime = System.nanoTime();
+
+    public static void allocated(long address, long size) {
+        allocatedBytes[blockType(address)].add(size);
+        allocations.increment();
+        LeakDetector.allocated(address, size);
+    }
+
+    public static void freed(long address, long size) {
+        allocatedBytes[blockType(address)].add(-size);
+        frees.increment();
+        LeakDetector.freed(address);
+    }
+
+    public static void blockCreated(int blockType) {
+        blocks.getAndIncrement(blockType);
+        blocksCreated.getAndIncrement();
+    }
+
+    public static void blockReleased(int blockType) {
+        blocks.getAndDecrement(blockType);
+        blocksReleased.getAndIncrement();
+    }
+
+    public static void fileMapped(int size) {
+        mappedFiles.getAndIncrement();
+        mappedBytes.getAndAdd(size);
+    }
+
+    public static void fileUnmapped(int size) {
+        mappedFiles.getAndDecrement();
+        mappedBytes.getAndAdd(-size);
+    }
+
+    public static void allocationWaited() {
+        allocationWaits.getAndIncrement();
+    }
+
+    public static void freedNativeMemory(long nanos) {
+        freeNativeMemoryCalls.getAndIncrement();
+        freeNativeMemoryTime.getAndAdd(nanos);
+    }
+
+    public static void reset() {
+        for (StripedCounter c: allocatedBytes) {
+            c.reset();
+        }
+        allocations.reset();
+        frees.reset();
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            blocks.set(i, 0);
+        }
+        blocksCreated.set(0);
+        blocksReleased.set(0);
+        mappedFiles.set(0);
+        mappedBytes.set(0);
+        allocationWaits.set(0);
+        freeNativeMemoryCalls.set(0);
+        freeNativeMemoryTime.set(0);
+        LeakDetector.reset();
+        startTime = System.nanoTime();
+    }
+
+    /** JMX **/
+
+    public static final String OBJECT_NAME = "eta.runtime:type=MemoryManager";
+
+    private static final MemoryManagerStats instance = new MemoryManagerStats();
+
+    public static MemoryManagerStats get() {
+        return instance;
+    }
+
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(instance, name);
+            }
+        } catch (Exception e) {
+            System.err.println("Unable to register the " + OBJECT_NAME + " MBean: " + e);
+        }
+    }
+
+    @Override
+    public long[] getBlockCounts() {
+        long[] counts = new long[NUM_BLOCK_TYPES];
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            counts[i] = blocks.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long[] getAllocatedBytesPerBlockType() {
+        long[] bytes = new long[NUM_BLOCK_TYPES];
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            bytes[i] = allocatedBytes[i].sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long[] getFreeBytesPerBlockType() {
+        long[] bytes = new long[NUM_BLOCK_TYPES];
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            bytes[i] = Math.max(0, blocks.get(i) * getBlockSize(i) - allocatedBytes[i].sum());
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getReservedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            bytes += blocks.get(i) * getBlockSize(i);
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getReservedOffHeapBytes() {
+        return reservedOffHeapMemory.get();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (StripedCounter c: allocatedBytes) {
+            bytes += c.sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getFreeBytes() {
+        return Math.max(0, getReservedBytes() - getAllocatedBytes());
+    }
+
+    /* The largest region in the free lists of the coalescing allocator. */
+    @Override
+    public long getLargestFreeExtent() {
+        return Math.max(largestKey(freeDirectBlocks), largestKey(freeHeapBlocks));
+    }
+
+    private static long largestKey(Map<Integer, ?> freeBlocks) {
+        long largest = 0;
+        for (Integer size: freeBlocks.keySet()) {
+            largest = Math.max(largest, size);
+        }
+        return largest;
+    }
+
+    /* How much of the memory in the free lists of the coalescing allocator is
+       unusable for an allocation as large as the largest free region: 0 means all
+       of it is in one region, values close to 1 mean it's split into many small
+       ones. */
+    @Override
+    public double getFragmentation() {
+        long[] totalAndLargest = new long[2];
+        sumFreeRegions(freeDirectAddresses, totalAndLargest);
+        sumFreeRegions(freeHeapAddresses, totalAndLargest);
+        long total   = totalAndLargest[0];
+        long largest = totalAndLargest[1];
+        return (total == 0)? 0.0 : 1.0 - (double) largest / total;
+    }
+
+    private static void sumFreeRegions(Map<Long, Integer> freeAddresses,
+                                       long[] totalAndLargest) {
+        for (Integer size: freeAddresses.values()) {
+            totalAndLargest[0] += size;
+            totalAndLargest[1]  = Math.max(totalAndLargest[1], size);
+        }
+    }
+
+    @Override
+    public long getMappedFiles() {
+        return mappedFiles.get();
+    }
+
+    @Override
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    @Override
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    @Override
+    public long getFrees() {
+        return frees.sum();
+    }
+
+    /* Allocations per second since the RTS started. */
+    @Override
+    public double getAllocationRate() {
+        return perSecond(getAllocations());
+    }
+
+    /* Frees per second since the RTS started. */
+    @Override
+    public double getFreeRate() {
+        return perSecond(getFrees());
+    }
+
+    private static double perSecond(long count) {
+        long elapsed = System.nanoTime() - startTime;
+        return (elapsed <= 0)? 0.0 : count * 1e9 / elapsed;
+    }
+
+    @Override
+    public long getBlocksCreated() {
+        return blocksCreated.get();
+    }
+
+    @Override
+    public long getBlocksReleased() {
+        return blocksReleased.get();
+    }
+
+    @Override
+    public long getAllocationWaits() {
+        return allocationWaits.get();
+    }
+
+    @Override
+    public long getFreeNativeMemoryCalls() {
+        return freeNativeMemoryCalls.get();
+    }
+
+    @Override
+    public long getFreeNativeMemoryTime() {
+        return freeNativeMemoryTime.get();
+    }
+
+    @Override
+    public String dumpAllocationSites(int limit) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        LeakDetector.dump(out, limit);
+        out.flush();
+        return bytes.toString();
+    }
+
+    /** Summary **/
+
+    /* The number of allocation sites in the summary when the leak detector is
+       enabled. */
+    private static final int SUMMARY_SITES = 10;
+
+    private static final String[] BLOCK_TYPE_NAMES = { "1MB", "16MB", "128MB", "1GB" };
+
+    public void printSummary(PrintStream out) {
+        long[] counts    = getBlockCounts();
+        long[] allocated = getAllocatedBytesPerBlockType();
+        long[] free      = getFreeBytesPerBlockType();
+        out.println("Off-heap memory (MemoryManager):");
+        out.format("  %-10s %10s %20s %20s%n", "Block Type", "Blocks", "Allocated", "Free");
+        for (int i = 0; i < NUM_BLOCK_TYPES; i++) {
+            out.format("  %-10s %10d %,20d %,20d%n",
+                       BLOCK_TYPE_NAMES[i], counts[i], allocated[i], free[i]);
+        }
+        out.format("  %,d bytes reserved, %,d allocated, %,d free%n",
+                   getReservedBytes(), getAllocatedBytes(), getFreeBytes());
+        out.format("  largest free extent %,d bytes, fragmentation %.1f%%%n",
+                   getLargestFreeExtent(), 100.0 * getFragmentation());
+        out.format("  %,d allocations (%.0f/s), %,d frees (%.0f/s)%n",
+                   getAllocations(), getAllocationRate(), getFrees(), getFreeRate());
+        out.format("  %,d blocks created, %,d released%n",
+                   getBlocksCreated(), getBlocksReleased());
+        out.format("  %,d bytes reserved off-heap, %,d allocations waited for memory%n",
+                   getReservedOffHeapBytes(), getAllocationWaits());
+        if (getMappedFiles() > 0) {
+            out.format("  %,d mapped files still open, %,d bytes%n",
+                       getMappedFiles(), getMappedBytes());
+        }
+        out.format("  %.3fs in %,d calls to maybeFreeNativeMemory%n",
+                   getFreeNativeMemoryTime() / 1e9, getFreeNativeMemoryCalls());
+        if (LeakDetector.isEnabled()) {
+            out.println();
+            LeakDetector.dump(out, SUMMARY_SITES);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package eta.runtime.io;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.WeakPtr;
+import static eta.runtime.RuntimeLogging.debugMemoryManager;
+
+/* A background thread that frees off-heap memory when it's running low: past the
+   high-water mark or when an allocation is waiting on the budget. The native
+   memory of a ByteArray can only be freed once the GC has found it to be garbage,
+   so it collects at most once every MIN_GC_INTERVAL and then drains the reference
+   queues of ByteArrays and WeakPtrs. */
+public final class OffHeapReclaimer implements Runnable {
+
+    private static final long MIN_GC_INTERVAL = 100L * 1000000L;
+
+    /* How long to keep draining the reference queues after a GC, since the
+       references it found are enqueued concurrently. */
+    private static final long DRAIN_TIME = 10L * 1000000L;
+
+    private static final Object lock = new Object();
+
+    /* Guarded by lock */
+    private static boolean requested;
+    private static Thread thread;
+
+    private static long lastGC = System.nanoTime() - MIN_GC_INTERVAL;
+
+    /* Wakes up the reclaimer, starting it if necessary. Never blocks. */
+    public static void request() {
+        synchronized (lock) {
+            requested = true;
+            if (thread == null) {
+                thread = new Thread(new OffHeapReclaimer(), "eta-off-heap-reclaimer");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            synchronized (lock) {
+                while (!requested) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {}
+                }
+                requested = false;
+            }
+            reclaim();
+        }
+    }
+
+    private static void reclaim() {
+        long now = System.nanoTime();
+        if (now - lastGC >= MIN_GC_INTERVAL) {
+            debugMemoryManager("Off-Heap Reclaimer: GC.");
+            lastGC = now;
+            System.gc();
+        }
+        long drainUntil = System.nanoTime() + DRAIN_TIME;
+        do {
+            IO.checkForGCByteArrays();
+            WeakPtr.checkForGCWeakPtrs();
+            /* Let the allocations retry as memory comes back. */
+            MemoryManager.offHeapMemoryFreed();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {}
+        } while (System.nanoTime() < drainUntil);
+        if (MemoryManager.reservedOffHeapMemory.get() > Runtime.getOffHeapHighWater()) {
+            /* Don't hold on to empty blocks while memory is tight. */
+            MemoryManager.releaseEmptyBlocks(0);
+        } else {
+            MemoryManager.maybeReleaseEmptyBlocks();
+        }
+        MemoryManager.offHeapMemoryFreed();
+    }
+}
@@ -0,0 +1,128 @@
+package eta.runtime.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.TSO;
+
+/* A bump-pointer arena for the memory of alloca, allocaBytes and friends.
+
+   Each TSO gets its own arena the first time it asks for one, so allocations
+   need no synchronization. Scoped allocations are strictly nested within a
+   thread: a scope takes a mark before allocating and releases the mark when it
+   exits, normally or via an exception, which frees everything allocated since
+   in one go.
+
+   The arena grows in chunks of Runtime.getArenaChunkSize() bytes, and larger
+   allocations get a chunk of their own. Chunks are pinned ByteArrays, so the
+   memory of an arena that is dropped together with its TSO is freed once the
+   chunks are garbage collected, like any other pinned ByteArray. Chunks are
+   never freed explicitly since a stray pointer into a released scope must not
+   hit memory that was handed out again by the MemoryManager. */
+public final class ScopedArena {
+
+    /* Returns the mark of the arena of the current thread, to be passed to
+       release when the scope exits. */
+    public static long mark() {
+        return current().getMark();
+    }
+
+    /* Allocates `n` bytes in the arena of the current thread at an address that
+       is a multiple of `alignment`, a power of two of at most
+       MemoryManager.MAX_ALIGNMENT. */
+    public static long allocate(int n, int alignment) {
+        return current().allocateBytes(n, alignment);
+    }
+
+    /* Frees everything allocated in the arena of the current thread since
+       `mark` was taken. */
+    public static void release(long mark) {
+        current().releaseTo(mark);
+    }
+
+    private static ScopedArena current() {
+        TSO tso = Capability.getLocal().context.currentTSO;
+        ScopedArena arena = tso.arena;
+        if (arena == null) {
+            arena = new ScopedArena();
+            tso.arena = arena;
+        }
+        return arena;
+    }
+
+    /* The chunks below and including `current` are in use, the ones above it
+       are kept around for the next time the arena grows. */
+    private final List<ByteArray> chunks = new ArrayList<ByteArray>();
+    private int  current = -1;
+    private long top;
+    private long limit;
+
+    /* A mark is the index of the current chunk in the upper half and the offset
+       of the top in that chunk in the lower half. */
+    private long getMark() {
+        if (current < 0) return -1L << 32;
+        return ((long) current << 32) | (top - chunks.get(current).address());
+    }
+
+    private long allocateBytes(int n, int alignment) {
+        if (n < 0 || n > MemoryManager.ONE_GB - MemoryManager.MAX_ALIGNMENT ||
+            alignment < 0 || alignment > MemoryManager.MAX_ALIGNMENT ||
+            (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException("Unsupported arena allocation of " + n +
+                                               " bytes with an alignment of " +
+                                               alignment + " bytes.");
+        }
+        int  mask    = (alignment == 0)? 0 : alignment - 1;
+        long address = (top + mask) & ~mask;
+        if (current < 0 || address + n > limit) {
+            nextChunk(n + mask);
+            address = (top + mask) & ~mask;
+        }
+        top = address + n;
+        return address;
+    }
+
+    /* Moves on to a chunk of at least `size` bytes, reusing the spare chunk
+       if it's big enough. */
+    private void nextChunk(int size) {
+        int next = current + 1;
+        ByteArray chunk = (next < chunks.size())? chunks.get(next) : null;
+        if (chunk == null || chunk.size < size) {
+            chunk = ByteArray.create(Math.max(size, Runtime.getArenaChunkSize()),
+                                     AllocationIndex.GRANULE, true);
+            if (next < chunks.size()) {
+                chunks.set(next, chunk);
+            } else {
+                chunks.add(chunk);
+            }
+        }
+        current = next;
+        top     = chunk.address();
+        limit   = top + chunk.size;
+    }
+
+    private void releaseTo(long mark) {
+        int index = (int)(mark >> 32);
+        if (index > current) return;
+        if (index < 0) {
+            current = -1;
+            top     = 0;
+            limit   = 0;
+        } else {
+            ByteArray chunk = chunks.get(index);
+            current = index;
+            top     = chunk.address() + (int) mark;
+            limit   = chunk.address() + chunk.size;
+        }
+        /* Keep a single spare chunk of the regular size so that a scope at the
+           edge of a chunk doesn't allocate a new one each time around. */
+        int spare = current + 1;
+        for (int i = chunks.size() - 1; i >= spare; i--) {
+            if (i > spare || chunks.get(i).size > Runtime.getArenaChunkSize()) {
+                chunks.remove(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package eta.runtime.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+import static eta.runtime.RuntimeLogging.debugMemoryManager;
+
+/* Segregated-fit allocator for small blocks.
+
+   Requests of up to MAX_SMALL_SIZE bytes are rounded up to a power-of-two size
+   class and carved out of slabs. A slab is a whole 1MB block that is dedicated
+   to a single size class and tracks its slots with a bitmap, so allocating or
+   freeing a slot does not box anything and does not touch the skip lists used
+   by the coalescing allocator in MemoryManager. Larger requests continue to go
+   through the coalescing allocator.
+
+   Each Capability keeps an AllocationCache of free slots per size class, so
+   most allocations and frees are served without taking the size class lock. */
+public class SizeClassAllocator {
+
+    public static final int MIN_SIZE_CLASS_BITS = 4;
+    public static final int MAX_SIZE_CLASS_BITS = 15;
+    public static final int NUM_SIZE_CLASSES
+        = MAX_SIZE_CLASS_BITS - MIN_SIZE_CLASS_BITS + 1;
+    public static final int MIN_SMALL_SIZE = 1 << MIN_SIZE_CLASS_BITS;
+    public static final int MAX_SMALL_SIZE = 1 << MAX_SIZE_CLASS_BITS;
+
+    /* Size classes whose slack, which can be the whole slot for an aligned
+       allocation, fits in a byte record it in a byte[]. */
+    private static final int MAX_BYTE_SLACK_SIZE = 128;
+
+    public static final SizeClassAllocator directAllocator
+        = new SizeClassAllocator(true);
+    public static final SizeClassAllocator heapAllocator
+        = new SizeClassAllocator(false);
+
+    public static SizeClassAllocator get(boolean direct) {
+        return direct? directAllocator : heapAllocator;
+    }
+
+    public static int sizeClass(int n) {
+        if (n <= MIN_SMALL_SIZE) return 0;
+        return (32 - Integer.numberOfLeadingZeros(n - 1)) - MIN_SIZE_CLASS_BITS;
+    }
+
+    public static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_CLASS_BITS);
+    }
+
+    public final boolean direct;
+    private final SizeClass[] sizeClasses = new SizeClass[NUM_SIZE_CLASSES];
+
+    private SizeClassAllocator(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+            sizeClasses[i] = new SizeClass(this, i);
+        }
+    }
+
+    /* Returns 0 if there's no room for a new slab. */
+    public long allocate(int n) {
+        return allocate(n, 0);
+    }
+
+    /* Slots are aligned to their size, so an aligned allocation only needs a
+       size class at least as large as the alignment. */
+    public long allocate(int n, int alignment) {
+        assert n <= MAX_SMALL_SIZE && alignment <= MAX_SMALL_SIZE;
+        int sizeClass = Math.max(sizeClass(n), sizeClass(alignment));
+        long address  = 0;
+        AllocationCache cache = localCache();
+        if (cache != null) {
+            address = cache.allocate(this, sizeClass);
+        }
+        if (address == 0) {
+            address = sizeClasses[sizeClass].allocateSlot();
+            if (address == 0) return 0;
+        }
+        Slab slab = lookupSlab(address);
+        int  slot = (int)(address - slab.address) >>> slab.slotBits;
+        slab.setSize(slot, n);
+        slab.markLive(slot);
+        debugMemoryManager("Allocate Slot @ " + address + " [" + n + " bytes].");
+        return address;
+    }
+
+    /* Returns false if `address` does not belong to a slab so that the caller
+       can fall back to the coalescing allocator. */
+    public static boolean free(long address) {
+        Slab slab = lookupSlab(address);
+        if (slab == null) return false;
+        int position = (int)(address - slab.address);
+        /* Ignore interior pointers and slots that were already freed. */
+        if ((position & (slab.slotSize - 1)) != 0) return true;
+        int slot = position >>> slab.slotBits;
+        if (!slab.clearLive(slot)) return true;
+        MemoryManagerStats.freed(address, slab.size(slot));
+        debugMemoryManager("Free Slot @ " + address + ".");
+        SizeClass sizeClass = slab.owner;
+        AllocationCache cache = localCache();
+        if (cache != null) {
+            cache.free(sizeClass.owner, sizeClass.sizeClass, address);
+        } else {
+            sizeClass.freeSlot(slab, slot);
+        }
+        return true;
+    }
+
+    /* This returns -1 if `address` is not the start of a live slot. */
+    public static int allocatedSize(Slab slab, long address) {
+        int position = (int)(address - slab.address);
+        if ((position & (slab.slotSize - 1)) != 0) return -1;
+        int slot = position >>> slab.slotBits;
+        if (!slab.isLive(slot)) return -1;
+        return slab.size(slot);
+    }
+
+    /** Allocation Caches **/
+
+    private static AllocationCache localCache() {
+        if (Runtime.getAllocationCacheSize() == 0) return null;
+        Capability cap = Capability.getLocalIfPresent();
+        return (cap == null)? null : cap.allocationCache;
+    }
+
+    /* Fills `slots` with up to `count` free slots from the global pool, in the
+       order they should be handed out from the end of the array. */
+    int refill(int sizeClass, long[] slots, int count) {
+        return sizeClasses[sizeClass].allocateSlots(slots, count);
+    }
+
+    /* Returns the slots in `slots[from..to)` to the global pool. */
+    void release(int sizeClass, long[] slots, int from, int to) {
+        sizeClasses[sizeClass].freeSlots(slots, from, to);
+    }
+
+    /* Returns the buffer for the slot that contains `address` positioned at
+       `address` and limited to the end of the allocation, or null if the slot is
+       free. */
+    public static ByteBuffer getBoundedBuffer(Slab slab, long address) {
+        int size = boundedSize(slab, address);
+        if (size < 0) return null;
+        int position = (int)(address - slab.address);
+        ByteBuffer buf = slab.buffer.duplicate();
+        buf.position(position);
+        buf.limit(position + size);
+        return buf;
+    }
+
+    /* Returns the number of bytes from `address` to the end of the allocation in
+       its slot, or -1 if the slot is free. */
+    public static int boundedSize(Slab slab, long address) {
+        int position = (int)(address - slab.address);
+        int slot     = position >>> slab.slotBits;
+        if (!slab.isLive(slot)) return -1;
+        int start = slot << slab.slotBits;
+        int size  = slab.size(slot);
+        if (position > start + size) return -1;
+        return start + size - position;
+    }
+
+    /** Slab Lookup **/
+
+    /* Slabs indexed by the block index of the 1MB block that backs them. The
+       array is only ever replaced by a larger copy so readers need no lock. */
+    private static volatile Slab[] slabs = new Slab[64];
+
+    public static Slab lookupSlab(long address) {
+        if (MemoryManager.blockType(address) != MemoryManager.ONE_MB_BLOCK) {
+            return null;
+        }
+        int blockIndex = MemoryManager.blockIndex(address, MemoryManager.ONE_MB_INDEX_BITS);
+        Slab[] s = slabs;
+        return (blockIndex < s.length)? s[blockIndex] : null;
+    }
+
+    private static synchronized void registerSlab(Slab slab) {
+        int blockIndex = MemoryManager.blockIndex(slab.address, MemoryManager.ONE_MB_INDEX_BITS);
+        Slab[] s = slabs;
+        if (blockIndex >= s.length) {
+            int newLength = s.length;
+            while (newLength <= blockIndex) newLength <<= 1;
+            Slab[] newSlabs = new Slab[newLength];
+            System.arraycopy(s, 0, newSlabs, 0, s.length);
+            s = newSlabs;
+        }
+        s[blockIndex] = slab;
+        slabs = s;
+    }
+
+    public static void dumpSlabs() {
+        Slab[] s = slabs;
+        boolean any = false;
+        for (Slab slab: s) {
+            if (slab != null) {
+                any = true;
+                System.out.println(slab.address + " " + (slab.direct? "Direct" : "Heap") +
+                                   " [" + slab.slotSize + " bytes] " +
+                                   slab.usedSlots() + "/" + slab.numSlots + " slots used");
+            }
+        }
+        if (!any) {
+            System.out.println("None");
+        }
+    }
+
+    private static synchronized void unregisterSlab(Slab slab) {
+        int blockIndex = MemoryManager.blockIndex(slab.address, MemoryManager.ONE_MB_INDEX_BITS);
+        Slab[] s = slabs;
+        if (blockIndex < s.length && s[blockIndex] == slab) {
+            s[blockIndex] = null;
+        }
+    }
+
+    /* Takes an empty slab out of its size class so that its block can be
+       released. Returns false if the slab is in use again. */
+    public static boolean releaseSlab(Slab slab) {
+        return slab.owner.release(slab);
+    }
+
+    public static synchronized void cleanup() {
+        slabs = new Slab[64];
+        directAllocator.reset();
+        heapAllocator.reset();
+    }
+
+    private void reset() {
+        for (SizeClass sizeClass: sizeClasses) {
+            sizeClass.reset();
+        }
+    }
+
+    /** Size Classes **/
+
+    private static final class SizeClass {
+        private final SizeClassAllocator owner;
+        private final int sizeClass;
+
+        /* The slab that allocations are served from. */
+        private Slab current;
+
+        /* Intrusive stack of slabs that have free slots, excluding `current`. */
+        private Slab partial;
+
+        public SizeClass(SizeClassAllocator owner, int sizeClass) {
+            this.owner     = owner;
+            this.sizeClass = sizeClass;
+        }
+
+        public synchronized long allocateSlot() {
+            return nextSlot();
+        }
+
+        public synchronized int allocateSlots(long[] slots, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                long slot = nextSlot();
+                if (slot == 0) {
+                    /* Out of memory, so hand out what was allocated so far. */
+                    int allocated = count - 1 - i;
+                    System.arraycopy(slots, i + 1, slots, 0, allocated);
+                    return allocated;
+                }
+                slots[i] = slot;
+            }
+            return count;
+        }
+
+        public synchronized void freeSlot(Slab slab, int slot) {
+            returnSlot(slab, slot);
+        }
+
+        public synchronized void freeSlots(long[] slots, int from, int to) {
+            for (int i = from; i < to; i++) {
+                long address = slots[i];
+                Slab slab    = lookupSlab(address);
+                returnSlot(slab, (int)(address - slab.address) >>> slab.slotBits);
+            }
+        }
+
+        private long nextSlot() {
+            Slab slab = current;
+            if (slab == null || slab.isFull()) {
+                slab = partial;
+                if (slab != null) {
+                    partial          = slab.nextPartial;
+                    slab.nextPartial = null;
+                    slab.inPartial   = false;
+                } else {
+                    slab = newSlab();
+                    if (slab == null) return 0;
+                }
+                current = slab;
+            }
+            if (slab.isEmpty()) {
+                MemoryManager.reuseBlock(MemoryManager.lookupBlock(slab.address),
+                                         slab.address);
+            }
+            int slot = slab.allocateSlot();
+            return slab.address + ((long) slot << slab.slotBits);
+        }
+
+        private void returnSlot(Slab slab, int slot) {
+            boolean wasFull = slab.isFull();
+            slab.freeSlot(slot);
+            if (wasFull && slab != current && !slab.inPartial) {
+                slab.nextPartial = partial;
+                slab.inPartial   = true;
+                partial          = slab;
+            }
+            if (slab.isEmpty()) {
+                MemoryManager.recordEmptyBlock(slab.address);
+            }
+        }
+
+        public synchronized boolean release(Slab slab) {
+            if (slab.released || !slab.isEmpty()) return false;
+            if (slab == current) {
+                current = null;
+            } else if (slab.inPartial) {
+                if (partial == slab) {
+                    partial = slab.nextPartial;
+                } else {
+                    Slab prev = partial;
+                    while (prev.nextPartial != slab) {
+                        prev = prev.nextPartial;
+                    }
+                    prev.nextPartial = slab.nextPartial;
+                }
+                slab.nextPartial = null;
+                slab.inPartial   = false;
+            }
+            slab.released = true;
+            unregisterSlab(slab);
+            return true;
+        }
+
+        private Slab newSlab() {
+            long address = MemoryManager.allocateBlock(MemoryManager.ONE_MB_BLOCK,
+                                                       owner.direct);
+            if (address == 0) return null;
+            Slab slab = new Slab(owner, this, address, sizeClass);
+            registerSlab(slab);
+            debugMemoryManager("Create Slab @ " + address + " for [" +
+                               slab.slotSize + " bytes].");
+            return slab;
+        }
+
+        public synchronized void reset() {
+            current = null;
+            partial = null;
+        }
+    }
+
+    /** Slabs **/
+
+    public static final class Slab {
+        public final long address;
+        public final ByteBuffer buffer;
+        public final int  slotBits;
+        public final int  slotSize;
+        public final int  numSlots;
+        private final SizeClass owner;
+        public final boolean direct;
+
+        /* Bit i is set if slot i has been taken out of the global pool, either by
+           an allocation or by an AllocationCache. Guarded by the owner's lock. */
+        private final long[] used;
+
+        /* Bit i is set if slot i has been handed out by allocate() and not freed
+           yet. Updated without locks so that cached slots can be handed out and
+           double frees can be detected from any thread. */
+        private final AtomicLongArray live;
+        private int numUsed;
+        private int searchIndex;
+
+        /* The slot size minus the requested size of each allocated slot. */
+        private final byte[] byteSlack;
+        private final char[] charSlack;
+
+        private Slab nextPartial;
+        private boolean inPartial;
+        private boolean released;
+
+        private Slab(SizeClassAllocator allocator, SizeClass owner, long address,
+                     int sizeClass) {
+            this.owner    = owner;
+            this.direct   = allocator.direct;
+            this.address  = address;
+            this.buffer   = MemoryManager.getBlock(address);
+            this.slotBits = sizeClass + MIN_SIZE_CLASS_BITS;
+            this.slotSize = 1 << slotBits;
+            this.numSlots = MemoryManager.ONE_MB >>> slotBits;
+            this.used     = new long[(numSlots + 63) >>> 6];
+            this.live     = new AtomicLongArray(used.length);
+            if (slotSize <= MAX_BYTE_SLACK_SIZE) {
+                byteSlack = new byte[numSlots];
+                charSlack = null;
+            } else {
+                byteSlack = null;
+                charSlack = new char[numSlots];
+            }
+            /* Slots past the end of the block are permanently marked used. */
+            if ((numSlots & 63) != 0) {
+                used[used.length - 1] = -1L << (numSlots & 63);
+            }
+        }
+
+        public boolean isFull() {
+            return numUsed == numSlots;
+        }
+
+        public boolean isEmpty() {
+            return numUsed == 0;
+        }
+
+        public int usedSlots() {
+            return numUsed;
+        }
+
+        public boolean isLive(int slot) {
+            return (live.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        private void markLive(int slot) {
+            int  index = slot >>> 6;
+            long bit   = 1L << slot;
+            long word;
+            do {
+                word = live.get(index);
+            } while (!live.compareAndSet(index, word, word | bit));
+        }
+
+        /* Returns false if the slot was not live. */
+        private boolean clearLive(int slot) {
+            int  index = slot >>> 6;
+            long bit   = 1L << slot;
+            long word;
+            do {
+                word = live.get(index);
+                if ((word & bit) == 0) return false;
+            } while (!live.compareAndSet(index, word, word & ~bit));
+            return true;
+        }
+
+        public int size(int slot) {
+            int slack = (byteSlack != null)? (byteSlack[slot] & 0xFF) : charSlack[slot];
+            return slotSize - slack;
+        }
+
+        private void setSize(int slot, int n) {
+            int slack = slotSize - n;
+            if (byteSlack != null) byteSlack[slot] = (byte) slack;
+            else charSlack[slot] = (char) slack;
+        }
+
+        private int allocateSlot() {
+            assert !isFull();
+            int words = used.length;
+            for (int i = 0; i < words; i++) {
+                int  index = (searchIndex + i) % words;
+                long free  = ~used[index];
+                if (free != 0) {
+                    int slot = (index << 6) + Long.numberOfTrailingZeros(free);
+                    used[index] |= 1L << slot;
+                    numUsed++;
+                    searchIndex = index;
+                    return slot;
+                }
+            }
+            throw new IllegalStateException("Slab @ " + address + " has no free slots.");
+        }
+
+        private void freeSlot(int slot) {
+            used[slot >>> 6] &= ~(1L << slot);
+            numUsed--;
+        }
+    }
+}
@@ -1,14 +1,16 @@
 package eta.runtime.stg;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.ArrayList;
 import java.util.Deque;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,8 +19,12 @@ import java.lang.ref.WeakReference;
 
 import eta.runtime.Runtime;
 import eta.runtime.io.IO;
+import eta.runtime.io.AllocationCache;
+import eta.runtime.io.FreeQueue;
 import eta.runtime.io.MemoryManager;
 import eta.runtime.concurrent.Concurrent;
+import eta.runtime.concurrent.ContextSwitchTimer;
+import eta.runtime.concurrent.MVar;
 import eta.runtime.concurrent.WorkerThread;
 import eta.runtime.exception.Exception;
 import eta.runtime.interpreter.Interpreter;
@@ -31,6 +37,7 @@ import eta.runtime.thunk.BlockingQueue;
 import eta.runtime.thunk.Thunk;
 import eta.runtime.thunk.UpdateInfo;
 import eta.runtime.thunk.WhiteHole;
+import eta.runtime.util.WorkStealingDeque;
 import static eta.runtime.stg.TSO.*;
 import static eta.runtime.stg.TSO.WhatNext;
 import static eta.runtime.stg.TSO.WhatNext.*;
@@ -39,7 +46,9 @@ import static eta.runtime.RuntimeLogging.barf;
 import static eta.runtime.RuntimeLogging.debugScheduler;
 
 public final class Capability {
-    public static List<Capability> capabilities = new ArrayList<Capability>();
+    /* Iterated over by Capabilities looking for work to steal, hence the copy on
+       write. */
+    public static List<Capability> capabilities = new CopyOnWriteArrayList<Capability>();
     public static Set<Capability> workerCapabilities
         = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
     public static AtomicInteger workerCapNextId = new AtomicInteger();
@@ -61,7 +70,6 @@ public final class Capability {
                 workerCapabilities.add(cap);
                 cap.id = workerCapNextId.getAndIncrement();
             } else {
-                /* TODO: Use a concurrent data structure for capabilities */
                 synchronized (capabilities) {
                     capabilities.add(cap);
                     cap.id = capabilities.size() - 1;
@@ -76,6 +84,25 @@ public final class Capability {
         return getLocal(false);
     }
 
+    /* Creates the Capability of a virtual thread, see VirtualThreads. It isn't
+       registered with the other Capabilities so that they never look for work
+       in it. */
+    public static Capability createVirtual(Thread t) {
+        Capability cap = new Capability(t, false);
+        cap.id = workerCapNextId.getAndIncrement();
+        return cap;
+    }
+
+    /* Binds a Capability made by createVirtual to the current thread. */
+    public static void setLocal(Capability cap) {
+        myCapability.set(cap);
+    }
+
+    /* Returns the Capability of the current thread without creating one. */
+    public static Capability getLocalIfPresent() {
+        return myCapability.get();
+    }
+
     public static int getNumCapabilities() {
         return Runtime.getMaxWorkerCapabilities();
     }
@@ -88,8 +115,10 @@ public final class Capability {
     public final boolean worker;
     public final WeakReference<Thread> thread;
     public StgContext context   = new StgContext();
-    public Deque<TSO> runQueue  = new LinkedList<TSO>();
+    public final WorkStealingDeque<TSO> runQueue = new WorkStealingDeque<TSO>();
     public Deque<Message> inbox = new ConcurrentLinkedDeque<Message>();
+    public final AllocationCache allocationCache = new AllocationCache();
+    public final FreeQueue freeQueue = new FreeQueue();
 
     public Capability(Thread t, boolean worker) {
         this.thread = new WeakReference<Thread>(t);
@@ -101,13 +130,17 @@ public final class Capability {
     }
 
     public final Closure schedule(TSO tso) throws java.lang.Exception {
-        if (tso != null) {
-            appendToRunQueue(tso);
-        }
+        /* The TSO that is passed in runs on this thread, so it skips the run queue
+           where other Capabilities could steal it. */
+        TSO     next   = tso;
         Closure result = null;
         TSO     outer  = null;
         java.lang.Exception pendingException = null;
 
+        if (tso != null) {
+            tso.cap = this;
+        }
+
         do {
             result = null;
             pendingException = null;
@@ -119,28 +152,43 @@ public final class Capability {
             /* TODO: The following still need to be implemented:
                - Deadlock detection. Be able to detect <<loop>>.
             */
-            if (emptyRunQueue()) {
+            if (next == null) {
+                if (emptyRunQueue()) {
 
-                if (worker && workerCapabilitiesSize() > Runtime.getMaxWorkerCapabilities()) {
-                    /* Terminate this Worker Capability if we've exceeded the limit
-                       of maxWorkerCapabilities. */
-                    return null;
-                }
+                    if (worker && workerCapabilitiesSize() > Runtime.getMaxWorkerCapabilities()) {
+                        /* Terminate this Worker Capability if we've exceeded the limit
+                           of maxWorkerCapabilities. */
+                        return null;
+                    }
 
-                tryStealGlobalRunQueue();
-                if (emptyRunQueue()) {
-                    activateSpark();
-                    if (emptyRunQueue()) {
-                        blockedCapabilities.add(this);
-                        do {
-                            blockedLoop(Runtime.getMinWorkerCapabilityIdleTimeNanos());
-                        } while (blockedCapabilities.contains(this));
-                        continue;
+                    next = tryStealWork();
+                    if (next == null) {
+                        activateSpark();
+                        if (emptyRunQueue()) {
+                            blockedCapabilities.add(this);
+                            /* Work that was queued before this Capability showed up
+                               as blocked didn't unblock it, so look once more. */
+                            next = tryStealWork();
+                            if (next != null) {
+                                blockedCapabilities.remove(this);
+                            } else {
+                                if (awaitWork()) continue;
+                                /* Terminate this Worker Capability since it's been
+                                   idle for too long. */
+                                return null;
+                            }
+                        }
                     }
                 }
+                if (next == null) {
+                    next = popRunQueue();
+                    /* The last TSO was stolen in the meantime. */
+                    if (next == null) continue;
+                }
             }
 
-            TSO t = popRunQueue();
+            TSO t = next;
+            next  = null;
             context.reset(this, t);
 
             WhatNext prevWhatNext = t.whatNext;
@@ -173,6 +221,11 @@ public final class Capability {
             /* Thread is done executing, awaken the blocked exception queue. */
             awakenBlockedExceptionQueue(t);
 
+            /* A finished thread has no more use for its arena. */
+            if (t.whatNext == ThreadComplete || t.whatNext == ThreadKilled) {
+                t.arena = null;
+            }
+
             /* If an unhandled exception occured, throw it so that the caller
                can handle it if they so choose. */
             if (pendingException != null) {
@@ -188,12 +241,26 @@ public final class Capability {
                 Runtime.exit();
                 throw pendingException;
             }
-            if (emptyRunQueue() && !worker) break;
+            if (!worker && (t == tso || emptyRunQueue())) {
+                /* Threads that were forked along the way stay in the run queue
+                   for the worker Capabilities to steal. */
+                if (!emptyRunQueue()) {
+                    manageOrSpawnWorkers();
+                }
+                /* The thread may not come back to the RTS for a while. */
+                freeQueue.drain();
+                break;
+            }
         } while (true);
         return result;
     }
 
-    /* Run Queue */
+    /* Run Queue
+
+       The run queue is a work-stealing deque: the Capability pushes and pops
+       TSOs at one end, newest first, while idle Capabilities steal the oldest
+       ones from the other end. Only the thread of the Capability may push or
+       pop. */
 
     public final boolean emptyRunQueue() {
         return runQueue.isEmpty();
@@ -204,31 +271,69 @@ public final class Capability {
     }
 
     public final void appendToRunQueue(TSO tso) {
-        if (!runQueue.contains(tso)) {
-            runQueue.offerLast(tso);
-        }
         tso.cap = this;
+        if (!tso.inRunQueue) {
+            tso.inRunQueue = true;
+            runQueue.push(tso);
+            /* The thread may have to wait for the one that's running. */
+            ContextSwitchTimer.start();
+        }
     }
 
-    public final void pushOnRunQueue(TSO tso) {
-        runQueue.offerFirst(tso);
-    }
+    /* Time Slicing */
 
-    public final TSO popRunQueue() {
-        return runQueue.pollFirst();
+    /* Set by the ContextSwitchTimer once the running thread has used up its
+       time slice, and checked at the safe points in Closure.evaluate. */
+    public volatile boolean contextSwitch;
+
+    /* Lets the threads that are waiting for this Capability run, as far as
+       that's possible without suspending the running thread. If no other
+       Capability can take them over, the thread that has waited the longest is
+       handed to a new worker Capability, even if that makes for more than
+       maxWorkerCapabilities, since the running thread may not come back to the
+       scheduler for a long time. There are at most maxPreemptionWorkers such
+       workers at a time, and each terminates once it runs out of work. */
+    public final void preempt() {
+        contextSwitch = false;
+        idleLoop(false);
+        if (!emptyRunQueue() && blockedCapabilities.isEmpty()
+            && workerCapabilitiesSize() >= Runtime.getMaxWorkerCapabilities()
+            && reservePreemptionWorker()) {
+            TSO tso = runQueue.steal();
+            if (tso != null) {
+                tso.inRunQueue = false;
+                debugScheduler("Capability[%d] handing TSO[%d] to a new worker.", id, tso.id);
+                new WorkerThread(tso, true).start();
+            } else {
+                releasePreemptionWorker();
+            }
+        }
+        /* Lets another virtual thread have the carrier thread. */
+        Thread.yield();
     }
 
-    public final TSO peekRunQueue() {
-        return runQueue.peekFirst();
+    /* The number of workers started by preempt() that are still running. */
+    private static final AtomicInteger preemptionWorkers = new AtomicInteger();
+
+    private static boolean reservePreemptionWorker() {
+        int n;
+        do {
+            n = preemptionWorkers.get();
+            if (n >= Runtime.getMaxPreemptionWorkers()) return false;
+        } while (!preemptionWorkers.compareAndSet(n, n + 1));
+        return true;
     }
 
-    public final void promoteInRunQueue(TSO tso) {
-        removeFromRunQueue(tso);
-        pushOnRunQueue(tso);
+    public static void releasePreemptionWorker() {
+        preemptionWorkers.decrementAndGet();
     }
 
-    public final void removeFromRunQueue(TSO tso) {
-        runQueue.remove(tso);
+    public final TSO popRunQueue() {
+        TSO tso = runQueue.pop();
+        if (tso != null) {
+            tso.inRunQueue = false;
+        }
+        return tso;
     }
 
     /* Message Inbox */
@@ -241,8 +346,21 @@ public final class Capability {
     }
 
     public final void sendMessage(Capability target, Message msg) {
-        target.inbox.offer(msg);
-        target.interrupt();
+        target.postMessage(msg);
+    }
+
+    /* Unlike sendMessage, this can be called from threads that don't have a
+       Capability, like the timer thread. */
+    public final void postMessage(Message msg) {
+        inbox.offer(msg);
+        /* Only an asynchronous exception has to break into a blocking Java
+           call. Other messages can wait for the thread to come back, since
+           interrupting it can have side effects like closing the channel it
+           was using. */
+        if (msg instanceof MessageThrowTo) {
+            interrupt();
+        }
+        wakeup();
     }
 
     public final boolean emptyInbox() {
@@ -342,27 +460,33 @@ public final class Capability {
         if (tso.cap != this) {
             sendMessage(tso.cap, new MessageWakeup(tso));
         } else {
-            boolean blocked = true;
             switch (tso.whyBlocked) {
                 case BlockedOnMVar:
                 case BlockedOnMVarRead:
-                    /* TODO: fix this */
+                    /* Only the thread that serves it can wake it up. */
+                    if (!MVar.isServed(tso)) {
+                        return;
+                    }
                     break;
                 case BlockedOnMsgThrowTo:
                     MessageThrowTo msg = (MessageThrowTo) tso.blockInfo;
                     if (msg.isValid()) {
                         return;
                     }
-                case BlockedOnBlackHole:
-                case BlockedOnSTM:
                     break;
                 default:
-                    blocked = false;
                     break;
             }
+            /* The thread is blocked in place on the stack of its Capability,
+               so it carries on by itself once it sees that it's no longer
+               blocked. Queueing it would let another Capability steal it and
+               run it a second time. */
             tso.whyBlocked = NotBlocked;
-            if (!blocked) {
-                appendToRunQueue(tso);
+            /* Don't let the Capability park before the thread has noticed,
+               unless this is its own thread, which notices before parking. A
+               needless wakeup would make its next park return right away. */
+            if (Thread.currentThread() != thread.get()) {
+                wakeup();
             }
         }
     }
@@ -375,6 +499,17 @@ public final class Capability {
         }
     }
 
+    /* Makes the thread of the Capability return from parking in blockedLoop,
+       or not park the next time. Unlike an interrupt, this can't be lost to
+       code that clears the interrupt status and doesn't disturb the thread
+       while it's running. */
+    public final void wakeup() {
+        Thread t = thread.get();
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
     public static void interruptAll() {
         for (Capability c: capabilities) {
             c.interrupt();
@@ -448,18 +583,50 @@ public final class Capability {
         /* TODO: Implement */
     }
 
-    /* Globan Run Queue Stealing */
+    /* Work Stealing */
 
-    public TSO tryStealGlobalRunQueue() {
+    /* Takes a TSO from the global run queue, which holds the threads created
+       outside of a Capability, or steals one from the run queue of another
+       Capability, starting from a random one so that thieves spread out. The TSO
+       is moved to this Capability. Returns null if there's no work to be
+       found. */
+    public final TSO tryStealWork() {
         TSO tso = Concurrent.globalRunQueue.pollLast();
         if (tso != null) {
             Concurrent.globalRunQueueModifiedTime = System.currentTimeMillis();
-            tso.cap = this;
-            tryWakeupThread(tso);
+        } else {
+            tso = stealFrom(capabilities);
+            if (tso == null) {
+                tso = stealFrom(workerCapabilities);
+            }
+            if (tso == null) return null;
+            tso.inRunQueue = false;
         }
+        tso.cap = this;
         return tso;
     }
 
+    private TSO stealFrom(Collection<Capability> victims) {
+        int size = victims.size();
+        if (size == 0) return null;
+        int start = ThreadLocalRandom.current().nextInt(size);
+        /* Visit the victims from `start` onwards, then the ones before it. */
+        for (int pass = 0; pass < 2; pass++) {
+            int i = 0;
+            for (Capability victim: victims) {
+                boolean visit = (pass == 0)? i >= start : i < start;
+                i++;
+                if (!visit || victim == this) continue;
+                WorkStealingDeque<TSO> queue = victim.runQueue;
+                while (!queue.isEmpty()) {
+                    TSO tso = queue.steal();
+                    if (tso != null) return tso;
+                }
+            }
+        }
+        return null;
+    }
+
     /* Idle Loop */
 
     public void idleLoop(boolean blocked) {
@@ -473,7 +640,10 @@ public final class Capability {
         //     }
         // }
 
-        threadPaused(tso);
+        /* An idle worker Capability has no thread to pause. */
+        if (tso != null) {
+            threadPaused(tso);
+        }
 
         /* Spawn worker capabilities if there's work to do */
         manageOrSpawnWorkers();
@@ -485,17 +655,42 @@ public final class Capability {
             /* Check for any completed futures and wake up the threads. */
             Concurrent.checkForCompletedFutures(this);
 
-            /* Check for any ready I/O operations and wake up the threads. */
-            Concurrent.checkForReadyIO(this);
-
             /* Free any memory if necessary */
             MemoryManager.maybeFreeNativeMemory();
+
+            /* Return queued frees to the free lists. */
+            freeQueue.drain();
+
+            /* Hand cached off-heap slots back so that busy Capabilities can use
+               them. */
+            allocationCache.flush();
         }
     }
 
-    /* Blocked Loop */
+    /* Waits until the Capability is unblocked because there's work to do, and
+       returns false if it's not within minWorkerCapabilityIdleTime. */
+    private boolean awaitWork() {
+        long deadline = System.nanoTime() + Runtime.getMinWorkerCapabilityIdleTimeNanos();
+        do {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                /* Unless it was unblocked in the meantime. */
+                return !blockedCapabilities.remove(this);
+            }
+            blockedLoop(remaining);
+        } while (blockedCapabilities.contains(this));
+        return true;
+    }
+
+    /* Blocked Loop
+
+       Parks the Capability until whatever the current thread is blocked on
+       wakes it up with a message or wakeup(), after which the caller checks
+       whether the thread can continue. The timeout is a safety net, except for
+       futures and I/O which are still polled. */
     public void blockedLoop() {
-        blockedLoop(Runtime.getMaxTSOBlockTimeNanos());
+        blockedLoop(Concurrent.anyPolledWaits()? Runtime.getPollTimeNanos()
+                                               : Runtime.getMaxTSOBlockTimeNanos());
     }
 
     public void blockedLoop(long nanos) {
@@ -516,18 +711,25 @@ public final class Capability {
             /* Interrupt the blocked capabilities so that they can terminate
                themselves when they unblock. */
 
-        if ((!Concurrent.emptyGlobalRunQueue() || Parallel.anySparks())
+        if ((!emptyRunQueue() || !Concurrent.emptyGlobalRunQueue() ||
+             Parallel.anySparks())
             // TODO: Is this timeout really necessary?
             // &&
             // ( System.currentTimeMillis()
             // - Concurrent.globalRunQueueModifiedTime
             // > Runtime.getMinTSOIdleTime())
             ) {
-            if (!blockedCapabilities.isEmpty()) {
-                unblockCapabilities();
-            } else if (workerCapabilitiesSize() < Runtime.getMaxWorkerCapabilities()) {
-                new WorkerThread().start();
-            }
+            wakeOrSpawnWorker();
+        }
+    }
+
+    /* Gets a worker Capability to look for work, which can be done from any
+       thread. */
+    public static void wakeOrSpawnWorker() {
+        if (!blockedCapabilities.isEmpty()) {
+            unblockCapabilities();
+        } else if (workerCapabilitiesSize() < Runtime.getMaxWorkerCapabilities()) {
+            new WorkerThread().start();
         }
     }
 
@@ -538,22 +740,30 @@ public final class Capability {
     public static Set<Capability> blockedCapabilities
         = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
     public static AtomicBoolean blockedCapabilitiesLock = new AtomicBoolean();
+    private static volatile boolean unblockPending;
 
     public static void unblockCapabilities() {
         /* TODO: Optimization? Only unlock SOME Capabilities to reduce contention on
                  grabbing from the Global Run Queue and Global Spark Pool. */
         /* NOTE: We just move on if we're unable to lock, as we know for sure
-                 another thread must be unblocking them anyways. */
-        if (!blockedCapabilities.isEmpty()) {
-            if (blockedCapabilitiesLock.compareAndSet(false, true)) {
-                try {
-                    for (Capability c:blockedCapabilities) {
-                        c.interrupt();
-                    }
-                    blockedCapabilities.clear();
-                } finally {
-                    blockedCapabilitiesLock.set(false);
+                 another thread must be unblocking them anyways. That thread
+                 goes over them again once it's done, in case a Capability
+                 blocked after it went past. */
+        if (blockedCapabilities.isEmpty()) return;
+        unblockPending = true;
+        while (unblockPending && blockedCapabilitiesLock.compareAndSet(false, true)) {
+            try {
+                unblockPending = false;
+                /* Each Capability is removed before it's woken up so that it
+                   doesn't go back to sleep. */
+                Iterator<Capability> it = blockedCapabilities.iterator();
+                while (it.hasNext()) {
+                    Capability c = it.next();
+                    it.remove();
+                    c.wakeup();
                 }
+            } finally {
+                blockedCapabilitiesLock.set(false);
             }
         }
     }
@@ -18,8 +18,12 @@ public abstract class Closure implements Serializable {
     public Closure evaluate(StgContext context) {
         Closure eval = getEvaluated();
         if (eval == null) {
+            Capability cap = context.myCapability;
             if (Thread.interrupted()) {
-                context.myCapability.idleLoop(false);
+                cap.idleLoop(false);
+            }
+            if (cap.contextSwitch) {
+                cap.preempt();
             }
             return enter(context);
         } else {
@@ -12,7 +12,14 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import eta.runtime.concurrent.Concurrent;
+import eta.runtime.concurrent.IOManager;
+import eta.runtime.concurrent.IOWait;
+import eta.runtime.concurrent.MVar;
+import eta.runtime.concurrent.Timer;
+import eta.runtime.concurrent.TimerManager;
 import eta.runtime.exception.Exception;
+import eta.runtime.io.ScopedArena;
 import eta.runtime.message.MessageThrowTo;
 import eta.runtime.stm.STM;
 import eta.runtime.stm.TransactionRecord;
@@ -41,6 +48,10 @@ public final class TSO extends BlackHole {
     public StackTraceElement[] stackTrace;
     public Throwable cause;
     public AtomicBoolean lock = new AtomicBoolean(false);
+    public ScopedArena arena;
+    /* Whether the TSO is in the run queue of its Capability, so that it's not
+       queued twice. */
+    public volatile boolean inRunQueue;
 
     /* TSO Flags */
     public static final int TSO_LOCKED = 2;
@@ -204,7 +215,7 @@ public final class TSO extends BlackHole {
                 break;
             case BlockedOnMVar:
             case BlockedOnMVarRead:
-                /* TODO: Figure out MVar story */
+                MVar.cancel(this);
                 break;
             case BlockedOnBlackHole:
                 break;
@@ -212,9 +223,16 @@ public final class TSO extends BlackHole {
                 MessageThrowTo m = (MessageThrowTo) blockInfo;
                 m.done();
                 break;
+            case BlockedOnDelay:
+                TimerManager.cancel((Timer) blockInfo);
+                break;
+            case BlockedOnFuture:
+                Concurrent.cancelFutureWait(this);
+                break;
             case BlockedOnRead:
             case BlockedOnWrite:
-            case BlockedOnDelay:
+            case BlockedOnIO:
+                IOManager.cancel((IOWait) blockInfo);
                 break;
             default:
                 barf("removeFromQueues: %d", whyBlocked);
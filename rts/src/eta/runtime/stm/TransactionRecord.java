@@ -58,7 +58,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         TransactionEntry entry = null;
         TransactionRecord trec = this;
         do {
-            entry = get(tvar);
+            entry = trec.get(tvar);
         } while (entry == null && ((trec = trec.enclosingTrec) != null));
         return (entry == null? null:new EntrySearchResult(trec, entry));
     }
@@ -92,6 +92,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         } else {
             Closure currentValue = tvar.currentValue();
             put(tvar, currentValue, currentValue);
+            result = currentValue;
         }
         return result;
     }
@@ -0,0 +1,45 @@
+package eta.runtime.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* A counter that many threads can update at once without contending on a single
+   cache line. Each thread adds to one of several cells picked by its id, and
+   reads sum up all the cells, so they are slower and only approximate while
+   updates are in flight. */
+public final class StripedCounter {
+
+    /* The number of longs in a cache line, so that cells don't share one. */
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private static int stripes() {
+        int processors = java.lang.Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, processors - 1)) << 1;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long n) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, n);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
@@ -2,7 +2,10 @@
 package eta.runtime.util;
 
 import sun.misc.Unsafe;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
@@ -74,6 +77,54 @@ public class UnsafeUtil {
 
     private UnsafeUtil() {}
 
+    /* Whether the platform supports unaligned multi-byte accesses. */
+    public static final boolean UNALIGNED_ACCESS = supportsUnalignedAccess();
+
+    private static boolean supportsUnalignedAccess() {
+        String arch = System.getProperty("os.arch", "");
+        return arch.equals("i386") || arch.equals("x86") || arch.equals("amd64") ||
+               arch.equals("x86_64") || arch.equals("aarch64") || arch.equals("ppc64le") ||
+               arch.equals("s390x");
+    }
+
+    private static final long bufferAddressOffset = findBufferAddressOffset();
+
+    private static long findBufferAddressOffset() {
+        if (UNSAFE == null) return -1;
+        try {
+            return UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /* Returns the native address of a direct buffer or 0 if it can't be found. */
+    public static long directBufferAddress(ByteBuffer buffer) {
+        if (bufferAddressOffset < 0 || !buffer.isDirect()) return 0;
+        return UNSAFE.getLong(buffer, bufferAddressOffset);
+    }
+
+    private static final Method invokeCleaner = findInvokeCleaner();
+
+    private static Method findInvokeCleaner() {
+        try {
+            return Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /* Frees the native memory behind a direct buffer right away on JDK 9+. On
+       older JDKs, it is freed once the buffer is garbage collected. The buffer
+       must not be used afterwards. */
+    public static void freeDirectBuffer(ByteBuffer buffer) {
+        if (UNSAFE != null && invokeCleaner != null && buffer.isDirect()) {
+            try {
+                invokeCleaner.invoke(UNSAFE, buffer);
+            } catch (Exception e) {}
+        }
+    }
+
     public static boolean cas(Thunk ind, Closure expected, Closure update) {
         return UNSAFE.compareAndSwapObject(ind, indirecteeOffset, expected, update);
     }
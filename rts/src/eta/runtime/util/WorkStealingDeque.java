@@ -0,0 +1,108 @@
+package eta.runtime.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* A Chase-Lev work-stealing deque. The owning thread pushes and pops elements
+   at the bottom without taking locks, while any other thread can steal from the
+   top, so the owner works through its most recent elements first and thieves
+   take the oldest ones. The owner and thieves only contend with a CAS when the
+   deque is down to its last element.
+
+   The elements live in a circular array that the owner doubles when it fills
+   up. A thief that still reads from the previous array sees the same elements
+   there, since the owner never writes to an array once it's been replaced.
+
+   Stolen slots are not cleared, so an element may stay reachable until its slot
+   is reused. */
+public final class WorkStealingDeque<E> extends WorkStealingDequeTop {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static final AtomicLongFieldUpdater<WorkStealingDequeTop> topUpdater
+        = AtomicLongFieldUpdater.newUpdater(WorkStealingDequeTop.class, "top");
+
+    /* The position after the newest element, only written by the owner. */
+    private volatile long bottom;
+
+    private volatile AtomicReferenceArray<E> array
+        = new AtomicReferenceArray<E>(INITIAL_CAPACITY);
+
+    /* Only called by the owner. */
+    public void push(E e) {
+        long b = bottom;
+        long t = top;
+        AtomicReferenceArray<E> a = array;
+        if (b - t >= a.length() - 1) {
+            a = grow(a, t, b);
+        }
+        a.lazySet((int) b & (a.length() - 1), e);
+        /* Publishes the element to thieves. */
+        bottom = b + 1;
+    }
+
+    /* Only called by the owner. Returns the newest element or null if the deque
+       is empty. */
+    public E pop() {
+        long b = bottom - 1;
+        AtomicReferenceArray<E> a = array;
+        /* Reserves the bottom element before looking at the top, which the
+           volatile write followed by the volatile read orders. */
+        bottom = b;
+        long t = top;
+        if (t > b) {
+            bottom = b + 1;
+            return null;
+        }
+        int index = (int) b & (a.length() - 1);
+        E e = a.get(index);
+        if (t == b) {
+            /* The last element, which a thief may be taking as well. */
+            if (!topUpdater.compareAndSet(this, t, t + 1)) e = null;
+            bottom = b + 1;
+        } else {
+            a.lazySet(index, null);
+        }
+        return e;
+    }
+
+    /* Can be called by any thread. Returns the oldest element, or null if the
+       deque is empty or another thread took the element first. */
+    public E steal() {
+        long t = top;
+        long b = bottom;
+        if (t >= b) return null;
+        AtomicReferenceArray<E> a = array;
+        E e = a.get((int) t & (a.length() - 1));
+        if (!topUpdater.compareAndSet(this, t, t + 1)) return null;
+        return e;
+    }
+
+    /* An estimate when called by a thread other than the owner. */
+    public boolean isEmpty() {
+        return bottom <= top;
+    }
+
+    public int size() {
+        long size = bottom - top;
+        return (size < 0)? 0 : (int) size;
+    }
+
+    private AtomicReferenceArray<E> grow(AtomicReferenceArray<E> a, long t, long b) {
+        int length = a.length();
+        AtomicReferenceArray<E> newArray = new AtomicReferenceArray<E>(length << 1);
+        int newMask = newArray.length() - 1;
+        for (long i = t; i < b; i++) {
+            newArray.lazySet((int) i & newMask, a.get((int) i & (length - 1)));
+        }
+        array = newArray;
+        return newArray;
+    }
+}
+
+/* Declares the top of a WorkStealingDeque in a class that isn't generic, so
+   that its field updater has an exact type. */
+abstract class WorkStealingDequeTop {
+    /* The position of the oldest element, only ever incremented by a CAS. */
+    volatile long top;
+}
@@ -23,6 +23,24 @@ rtsBuildDir = rtsDir </> "build"
 rtsSrcDir = rtsDir </> "src"
 rtsjar = libJarPath "rts"
 
+-- * Benchmarks
+benchDir, benchSrcDir, benchBuildDir, benchClassesDir, benchClassPath,
+  benchResults :: FilePath
+benchDir = "utils" </> "benchmarks"
+benchSrcDir = benchDir </> "src"
+benchBuildDir = benchDir </> "build"
+benchClassesDir = benchBuildDir </> "classes"
+benchClassPath = benchBuildDir </> "jmh.classpath"
+benchResults = benchBuildDir </> "results.json"
+
+jmhVersion :: String
+jmhVersion = "1.21"
+
+jmhArtifacts :: [String]
+jmhArtifacts = map (++ (':' : jmhVersion))
+  [ "org.openjdk.jmh:jmh-core"
+  , "org.openjdk.jmh:jmh-generator-annprocess" ]
+
 library, genBuild, top, packageConfDir, libCustomBuildDir, libJarPath,
   libName :: String -> FilePath
 library x = libraryDir </> x
@@ -236,6 +254,30 @@ main = shakeArgsWith shakeOptions{shakeFiles=rtsBuildDir} flags $ \flags' target
       specs <- getDirectoryFiles "" ["//*.spec"]
       mapM_ (\spec -> removeFilesAfter (takeDirectory spec </> "build") ["//*"]) specs
 
+    -- Runs the JMH benchmarks of the runtime and writes the results to
+    -- benchResults. Arguments for JMH can be passed in JMH_ARGS, like
+    -- JMH_ARGS="-f 2 MemoryManager" to run a subset of the benchmarks.
+    phony "bench" $ do
+      need [rtsjar, benchClassPath]
+      jmhClassPath <- fmap (head . lines) $ readFile' benchClassPath
+      cs <- getDirectoryFiles benchSrcDir ["//*.java"]
+      let classPath = intercalate ":" [benchClassesDir, rtsjar, jmhClassPath]
+      liftIO $ removeFiles benchClassesDir ["//*"]
+      createDirIfMissing benchClassesDir
+      unit $ cmd "javac" ["-cp", classPath, "-d", benchClassesDir]
+                 (map (benchSrcDir </>) cs)
+      jmhArgs <- fmap (maybe [] words) $ getEnv "JMH_ARGS"
+      unit $ cmd "java" ["-cp", classPath] "org.openjdk.jmh.Main"
+                 ["-rf", "json", "-rff", benchResults] jmhArgs
+      putNormal $ "Benchmark results written to " ++ benchResults
+
+    -- JMH is fetched once and the classpath is kept around, so the benchmarks
+    -- run offline from then on.
+    benchClassPath %> \out -> do
+      Stdout classPath <- cmd "utils/coursier/coursier fetch --quiet --classpath"
+                              jmhArtifacts
+      writeFileChanged out classPath
+
     phony "uninstall" $ do
       rootDir <- getEtaRoot
       createDirIfMissing rootDir
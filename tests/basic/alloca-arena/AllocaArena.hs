@@ -0,0 +1,51 @@
+-- Checks that alloca scopes nest, that the memory of a scope is handed out
+-- again once the scope exits, even via an exception, and that allocations
+-- larger than an arena chunk work.
+import Control.Concurrent
+import Control.Exception
+import Control.Monad
+import Foreign.Marshal.Alloc
+import Foreign.Ptr
+import Foreign.Storable
+import Data.Word
+
+main :: IO ()
+main = do
+  -- Nested scopes don't overlap and keep their contents.
+  nested <- allocaBytes 64 $ \p -> do
+    poke (castPtr p) (1 :: Word64)
+    allocaBytes 64 $ \q -> do
+      poke (castPtr q) (2 :: Word64)
+      a <- peek (castPtr p) :: IO Word64
+      b <- peek (castPtr q) :: IO Word64
+      return (p /= q && a == 1 && b == 2)
+  print nested
+  -- An exception resets the arena to where the scope started.
+  p1 <- allocaBytes 32 return
+  _  <- try (allocaBytes 32 $ \_ -> throwIO (userError "boom"))
+          :: IO (Either IOException ())
+  p2 <- allocaBytes 32 return
+  print (p1 == p2)
+  -- Allocations spanning several chunks.
+  big <- allocaBytes (1024 * 1024) $ \p -> do
+    pokeByteOff p (1024 * 1024 - 1) (7 :: Word8)
+    peekByteOff p (1024 * 1024 - 1) :: IO Word8
+  print big
+  deep <- foldr (\_ k -> allocaBytes 4000 $ \p -> do
+                           poke (castPtr p) (3 :: Word32)
+                           r <- k
+                           x <- peek (castPtr p)
+                           return (r + x)) (return 0) [1 .. 100 :: Int]
+  print (deep :: Word32)
+  -- Threads have arenas of their own.
+  done <- newEmptyMVar
+  forM_ [1 .. 4 :: Int] $ \i -> forkIO $ do
+    ok <- fmap and $ forM [1 .. 1000 :: Int] $ \j ->
+      alloca $ \p -> do
+        poke p (i * j)
+        yield
+        v <- peek p
+        return (v == i * j)
+    putMVar done ok
+  oks <- replicateM 4 (takeMVar done)
+  print (and oks)
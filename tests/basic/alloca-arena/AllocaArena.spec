@@ -0,0 +1,6 @@
+
+True
+True
+7
+300
+True
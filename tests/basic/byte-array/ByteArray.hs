@@ -0,0 +1,58 @@
+{-# LANGUAGE MagicHash, UnboxedTuples #-}
+-- Writes to unpinned and pinned byte arrays, copies between them and through
+-- off-heap memory, and reads the values back.
+import Foreign.Marshal.Alloc
+import Foreign.Ptr
+import Foreign.Storable
+import GHC.Exts
+import GHC.IO (IO(..))
+
+data MBA = MBA (MutableByteArray# RealWorld)
+
+newArray :: Bool -> Int -> IO MBA
+newArray pinned (I# n) = IO $ \s ->
+  case (if pinned then newPinnedByteArray# n s else newByteArray# n s) of
+    (# s', mba #) -> (# s', MBA mba #)
+
+writeInt :: MBA -> Int -> Int -> IO ()
+writeInt (MBA mba) (I# i) (I# x) = IO $ \s -> (# writeIntArray# mba i x s, () #)
+
+readInt :: MBA -> Int -> IO Int
+readInt (MBA mba) (I# i) = IO $ \s ->
+  case readIntArray# mba i s of (# s', x #) -> (# s', I# x #)
+
+writeDouble :: MBA -> Int -> Double -> IO ()
+writeDouble (MBA mba) (I# i) (D# x) = IO $ \s -> (# writeDoubleArray# mba i x s, () #)
+
+readWord8 :: MBA -> Int -> IO Word
+readWord8 (MBA mba) (I# i) = IO $ \s ->
+  case readWord8Array# mba i s of (# s', x #) -> (# s', W# x #)
+
+copyArray :: MBA -> MBA -> Int -> IO ()
+copyArray (MBA src) (MBA dst) (I# n) = IO $ \s ->
+  (# copyMutableByteArray# src 0# dst 0# n s, () #)
+
+toAddr :: MBA -> Ptr a -> Int -> IO ()
+toAddr (MBA src) (Ptr a) (I# n) = IO $ \s ->
+  (# copyMutableByteArrayToAddr# src 0# a n s, () #)
+
+fromAddr :: Ptr a -> MBA -> Int -> IO ()
+fromAddr (Ptr a) (MBA dst) (I# n) = IO $ \s ->
+  (# copyAddrToByteArray# a dst 0# n s, () #)
+
+main :: IO ()
+main = do
+  let n = 64
+  unpinned <- newArray False n
+  mapM_ (\i -> writeInt unpinned i (i * 1000003)) [0 .. 7]
+  writeDouble unpinned 7 2.5
+  pinned <- newArray True n
+  copyArray unpinned pinned n
+  mapM (readInt pinned) [0 .. 6] >>= print
+  allocaBytes n $ \p -> do
+    toAddr pinned p n
+    peekByteOff p 56 >>= (print :: Double -> IO ())
+    back <- newArray False n
+    fromAddr p back n
+    mapM (readInt back) [0 .. 6] >>= print
+    readWord8 back 8 >>= print
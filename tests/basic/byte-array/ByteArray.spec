@@ -0,0 +1,5 @@
+
+[0,1000003,2000006,3000009,4000012,5000015,6000018]
+2.5
+[0,1000003,2000006,3000009,4000012,5000015,6000018]
+0
@@ -0,0 +1,51 @@
+{-# LANGUAGE MagicHash, TypeFamilies, DataKinds, ScopedTypeVariables #-}
+-- Checks that a thread waiting on a CompletableFuture is woken up by its
+-- completion callback when another Java thread completes it, that a future
+-- completed exceptionally throws to the waiting thread, and that a thread
+-- waiting on a future that never completes can be killed.
+import Control.Concurrent
+import Control.Exception
+import Data.Int
+import Java
+import Java.Concurrent (Future, TimeUnit, timeUnitMILLISECONDS, waitFuture)
+import Java.Exception (JException)
+
+data {-# CLASS "java.util.concurrent.CompletableFuture" #-}
+  CompletableFuture = CompletableFuture (Object# CompletableFuture)
+  deriving Class
+
+type instance Inherits CompletableFuture = '[Object, Future JString]
+
+foreign import java unsafe "@new" newCompletableFuture :: IO CompletableFuture
+
+-- Both complete the future on the delayer thread of CompletableFuture once
+-- the timeout has passed.
+foreign import java unsafe completeOnTimeout
+  :: CompletableFuture -> Object -> Int64 -> TimeUnit -> IO CompletableFuture
+
+foreign import java unsafe orTimeout
+  :: CompletableFuture -> Int64 -> TimeUnit -> IO CompletableFuture
+
+asFuture :: CompletableFuture -> Future JString
+asFuture = superCast
+
+main :: IO ()
+main = do
+  completed <- newCompletableFuture
+  _ <- completeOnTimeout completed (superCast (toJava "done" :: JString)) 50
+         timeUnitMILLISECONDS
+  s <- waitFuture (asFuture completed)
+  print (fromJava s :: String)
+  failed <- newCompletableFuture
+  _ <- orTimeout failed 50 timeUnitMILLISECONDS
+  r <- try (waitFuture (asFuture failed))
+  print $ case r of
+    Left (_ :: JException) -> True
+    Right _                -> False
+  never <- newCompletableFuture
+  done  <- newEmptyMVar
+  t <- forkIO $ (waitFuture (asFuture never) >> putMVar done False)
+                  `catch` \e -> putMVar done (e == ThreadKilled)
+  threadDelay 10000
+  killThread t
+  takeMVar done >>= print
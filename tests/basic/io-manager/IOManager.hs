@@ -0,0 +1,94 @@
+{-# LANGUAGE MagicHash, TypeFamilies, DataKinds #-}
+-- Checks that a thread waiting in threadWaitRead is woken up by the IO manager
+-- as another thread writes to a pipe, and that closing a channel with
+-- closeFdWith wakes up the thread waiting on it right away.
+import Control.Concurrent
+import Control.Exception
+import Control.Monad
+import Data.Int
+import GHC.Conc (closeFdWith)
+import Java
+import Java.NIO (ByteBuffer)
+import System.Posix.Types (Channel)
+
+data {-# CLASS "java.nio.channels.Pipe" #-} Pipe = Pipe (Object# Pipe)
+  deriving Class
+
+data {-# CLASS "java.nio.channels.SelectableChannel" #-}
+  SelectableChannel = SelectableChannel (Object# SelectableChannel)
+  deriving Class
+
+type instance Inherits SelectableChannel = '[Channel]
+
+data {-# CLASS "java.nio.channels.Pipe$SourceChannel" #-}
+  SourceChannel = SourceChannel (Object# SourceChannel)
+  deriving Class
+
+type instance Inherits SourceChannel = '[SelectableChannel]
+
+data {-# CLASS "java.nio.channels.Pipe$SinkChannel" #-}
+  SinkChannel = SinkChannel (Object# SinkChannel)
+  deriving Class
+
+foreign import java unsafe "@static java.nio.channels.Pipe.open"
+  openPipe :: IO Pipe
+
+foreign import java unsafe "source" source :: Pipe -> IO SourceChannel
+
+foreign import java unsafe "sink" sink :: Pipe -> IO SinkChannel
+
+foreign import java unsafe "configureBlocking"
+  configureBlocking :: SourceChannel -> Bool -> IO SelectableChannel
+
+foreign import java unsafe "read" readInto :: SourceChannel -> ByteBuffer -> IO Int
+
+foreign import java unsafe "write" writeFrom :: SinkChannel -> ByteBuffer -> IO Int
+
+foreign import java unsafe "@static java.nio.ByteBuffer.allocate"
+  allocate :: Int -> IO ByteBuffer
+
+foreign import java unsafe "@interface close" closeChannel :: Channel -> IO ()
+
+foreign import java unsafe "@static java.lang.System.nanoTime"
+  nanoTime :: IO Int64
+
+openSource :: IO (Pipe, SourceChannel)
+openSource = do
+  pipe <- openPipe
+  src  <- source pipe
+  _    <- configureBlocking src False
+  return (pipe, src)
+
+main :: IO ()
+main = do
+  -- Every byte written by one thread is read by the other, which waits for
+  -- each of them in threadWaitRead.
+  (pipe, src) <- openSource
+  snk <- sink pipe
+  let rounds = 100
+  done <- newEmptyMVar
+  _ <- forkIO $
+    let go n
+          | n >= rounds = putMVar done n
+          | otherwise = do
+              threadWaitRead (superCast src)
+              k <- allocate 16 >>= readInto src
+              go (n + max 0 k)
+    in go 0
+  _ <- forkIO $ forM_ [1 .. rounds] $ \_ -> do
+    threadDelay 1000
+    allocate 1 >>= writeFrom snk
+  n <- takeMVar done
+  print (n == rounds)
+  -- A thread waiting on a channel that's closed with closeFdWith doesn't have
+  -- to wait for its blocked loop to time out.
+  (_, src2) <- openSource
+  woken <- newEmptyMVar
+  _ <- forkIO $ do
+    _ <- try (threadWaitRead (superCast src2)) :: IO (Either SomeException ())
+    nanoTime >>= putMVar woken
+  threadDelay 10000
+  closedAt <- nanoTime
+  closeFdWith closeChannel (superCast src2)
+  t <- takeMVar woken
+  print (t - closedAt < 50000000)
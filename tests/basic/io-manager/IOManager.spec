@@ -0,0 +1,3 @@
+
+True
+True
@@ -0,0 +1,24 @@
+-- Checks that aligned pinned allocations come back at the requested alignment,
+-- for sizes both below and above the alignment.
+import Control.Monad
+import Foreign.ForeignPtr
+import GHC.ForeignPtr (mallocForeignPtrAlignedBytes)
+import Foreign.Marshal.Alloc
+import Foreign.Ptr
+
+alignments, sizes :: [Int]
+alignments = map (2 ^) [0 .. 12 :: Int]
+sizes      = [0, 1, 24, 100, 5000, 70000]
+
+isAligned :: Ptr a -> Int -> Bool
+isAligned p align = ptrToIntPtr p `mod` fromIntegral align == 0
+
+main :: IO ()
+main = do
+  allocaOk <- forM [(a, s) | a <- alignments, s <- sizes] $ \(a, s) ->
+    allocaBytesAligned s a $ \p -> return (isAligned p a)
+  print (and allocaOk)
+  mallocOk <- forM [(a, s) | a <- alignments, s <- sizes] $ \(a, s) -> do
+    fp <- mallocForeignPtrAlignedBytes s a :: IO (ForeignPtr ())
+    withForeignPtr fp $ \p -> return (isAligned p a)
+  print (and mallocOk)
@@ -0,0 +1,38 @@
+-- Allocates, writes, reads back and frees off-heap memory from many threads at
+-- once so that new blocks get added to the MemoryManager while other threads
+-- are looking up existing ones.
+import Control.Concurrent
+import Control.Monad
+import Data.Word
+import Foreign.Marshal.Alloc
+import Foreign.Ptr
+import Foreign.Storable
+
+numThreads, numRounds :: Int
+numThreads = 16
+numRounds  = 2000
+
+worker :: Int -> MVar Bool -> IO ()
+worker n done = go 0 True
+  where go i ok
+          | i == numRounds = putMVar done ok
+          | otherwise = do
+              let size = 8 + ((i * 7919 + n * 104729) `mod` 70000)
+                  val  = fromIntegral (i + n) :: Word64
+              ptr <- mallocBytes size
+              poke (castPtr ptr) val
+              poke (ptr `plusPtr` (size - 8)) val
+              yield
+              x <- peek (castPtr ptr)
+              y <- peek (ptr `plusPtr` (size - 8))
+              free ptr
+              go (i + 1) (ok && x == val && y == (val :: Word64))
+
+main :: IO ()
+main = do
+  dones <- forM [1..numThreads] $ \n -> do
+    done <- newEmptyMVar
+    _ <- forkIO (worker n done)
+    return done
+  results <- mapM takeMVar dones
+  print (and results)
@@ -0,0 +1,62 @@
+-- Checks that blocked takers are served in the order in which they blocked,
+-- that blocked readers are served along with the first taker, that the try
+-- variants neither block nor lose values, and that a thread killed while
+-- blocked in takeMVar leaves the value to the next taker.
+import Control.Concurrent
+import Control.Monad
+import Data.List (sort)
+import GHC.Conc (ThreadStatus(..), threadStatus)
+
+-- Waits until the thread has blocked, so that threads block in a known order.
+waitBlocked :: ThreadId -> IO ()
+waitBlocked t = do
+  s <- threadStatus t
+  case s of
+    ThreadBlocked _ -> return ()
+    _               -> threadDelay 1000 >> waitBlocked t
+
+forkTaker :: MVar Int -> MVar (Int, Int) -> Int -> IO ThreadId
+forkTaker mv results k = do
+  t <- forkIO $ takeMVar mv >>= \v -> putMVar results (k, v)
+  waitBlocked t
+  return t
+
+main :: IO ()
+main = do
+  -- FIFO: the first taker to block gets the first value.
+  mv      <- newEmptyMVar
+  results <- newEmptyMVar
+  forM_ [1 .. 5] $ forkTaker mv results
+  forM_ [1 .. 5] $ putMVar mv
+  got <- replicateM 5 (takeMVar results)
+  print (sort got == [ (k, k) | k <- [1 .. 5] ])
+  -- A reader that blocks after a taker still sees the value, and the taker
+  -- still takes it.
+  _ <- forkTaker mv results 0
+  reader <- newEmptyMVar
+  r <- forkIO $ readMVar mv >>= putMVar reader
+  waitBlocked r
+  putMVar mv 7
+  readValue <- takeMVar reader
+  taken     <- takeMVar results
+  empty     <- isEmptyMVar mv
+  print (readValue, taken, empty)
+  -- The try variants.
+  t1 <- tryTakeMVar mv
+  p1 <- tryPutMVar mv 1
+  p2 <- tryPutMVar mv 2
+  t2 <- tryTakeMVar mv
+  print (t1, p1, p2, t2)
+  _  <- forkTaker mv results 3
+  p3 <- tryPutMVar mv 5
+  handed <- takeMVar results
+  empty' <- isEmptyMVar mv
+  print (p3, handed, empty')
+  -- A killed taker is taken off the queue, and the value goes to the next one.
+  killed <- forkTaker mv results 1
+  _      <- forkTaker mv results 2
+  killThread killed
+  putMVar mv 42
+  next <- takeMVar results
+  empty'' <- isEmptyMVar mv
+  print (next, empty'')
@@ -0,0 +1,6 @@
+
+True
+(7,(0,7),True)
+(Nothing,True,False,Just 1)
+(True,(3,5),True)
+((2,42),True)
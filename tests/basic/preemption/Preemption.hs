@@ -0,0 +1,51 @@
+-- Checks that +RTS -C sets the time slice, and that a thread that keeps
+-- running gets preempted so that a thread forked onto its Capability runs,
+-- even when no worker Capabilities may be spawned.
+import Control.Concurrent
+import Control.Exception
+import Data.Int
+import Java.String
+
+foreign import java unsafe "@static java.lang.System.nanoTime"
+  nanoTime :: IO Int64
+
+foreign import java unsafe "@static eta.runtime.RuntimeOptions.splitRuntimeOptions"
+  splitRuntimeOptions :: JString -> IO ()
+
+foreign import java unsafe "@static eta.runtime.RuntimeOptions.procRtsOpts"
+  procRtsOpts :: Int -> IO ()
+
+foreign import java unsafe "@static eta.runtime.Runtime.getContextSwitchTime"
+  getContextSwitchTime :: IO Int
+
+foreign import java unsafe "@static eta.runtime.Runtime.getMinTSOIdleTime"
+  getMinTSOIdleTime :: IO Int
+
+foreign import java unsafe "@static eta.runtime.Runtime.setMaxWorkerCapabilities"
+  setMaxWorkerCapabilities :: Int -> IO ()
+
+main :: IO ()
+main = do
+  -- -C takes the time slice in seconds and leaves minTSOIdleTime alone.
+  idle <- getMinTSOIdleTime
+  splitRuntimeOptions (toJString "-C0.005")
+  procRtsOpts 0
+  slice <- getContextSwitchTime
+  idle' <- getMinTSOIdleTime
+  print (slice, idle == idle')
+  -- The forked thread has to wait for this one, which only stops spinning
+  -- once the forked thread has run, or after 10 seconds.
+  setMaxWorkerCapabilities 0
+  ran <- newEmptyMVar
+  start <- nanoTime
+  _ <- forkIO $ nanoTime >>= putMVar ran
+  let spin = do
+        r <- tryReadMVar ran
+        now <- nanoTime
+        case r of
+          Just t -> return (Just t)
+          Nothing
+            | now - start > 10000000000 -> return Nothing
+            | otherwise -> evaluate (sum [1 .. 1000 :: Integer]) >> spin
+  r <- spin
+  print (fmap (\t -> t - start < 2000000000) r)
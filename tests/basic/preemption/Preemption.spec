@@ -0,0 +1,3 @@
+
+(5,True)
+Just True
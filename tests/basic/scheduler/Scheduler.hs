@@ -0,0 +1,35 @@
+{-# LANGUAGE MagicHash #-}
+-- Forks threads that fork threads of their own and checks that they all run to
+-- completion. The main thread blocks on its Capability while they run, so the
+-- threads it forks only run once other Capabilities steal them.
+import Control.Concurrent
+import Control.Monad
+import Java
+
+data {-# CLASS "eta.runtime.stg.Capability" #-}
+  Capability = Capability (Object# Capability)
+  deriving Class
+
+foreign import java unsafe "@static eta.runtime.stg.Capability.getLocal"
+  getLocalCapability :: IO Capability
+
+parents, children :: Int
+parents  = 50
+children = 40
+
+main :: IO ()
+main = do
+  mainCap <- getLocalCapability
+  results <- newEmptyMVar
+  forM_ [1 .. parents] $ \i -> forkIO $ do
+    cap <- getLocalCapability
+    forM_ [1 .. children] $ \j -> forkIO $ do
+      let s = sum [1 .. i * j]
+      s `seq` putMVar results (s, False)
+    putMVar results (0, equals cap mainCap)
+  rs <- replicateM (parents * (children + 1)) (takeMVar results)
+  print (length rs)
+  print (sum (map fst rs) == sum [ n * (n + 1) `div` 2 | i <- [1 .. parents]
+                                                       , j <- [1 .. children]
+                                                       , let n = i * j ])
+  print (not (any snd rs))
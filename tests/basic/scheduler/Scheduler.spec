@@ -0,0 +1,4 @@
+
+2050
+True
+True
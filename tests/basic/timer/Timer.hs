@@ -0,0 +1,48 @@
+-- Checks that threadDelay waits at least as long as asked, that a thread
+-- blocked in threadDelay can be killed, and that timeout and registerDelay
+-- work off the timer manager, with no stray Timeout escaping timeout.
+import Control.Concurrent
+import Control.Exception
+import Control.Monad
+import Data.Int
+import GHC.Conc
+import System.Timeout
+
+foreign import java unsafe "@static java.lang.System.nanoTime"
+  nanoTime :: IO Int64
+
+main :: IO ()
+main = do
+  -- The delay is never shorter than requested.
+  start <- nanoTime
+  threadDelay 50000
+  end <- nanoTime
+  print (end - start >= 50000000)
+  -- Many threads waiting at once all wake up.
+  done <- newEmptyMVar
+  forM_ [1..100] $ \i -> forkIO $ threadDelay (1000 * (i `mod` 10)) >> putMVar done ()
+  replicateM_ 100 (takeMVar done)
+  print True
+  -- A killed thread stops waiting.
+  blocked <- newEmptyMVar
+  t <- forkIO $ threadDelay 10000000 `finally` putMVar blocked ()
+  threadDelay 10000
+  killThread t
+  takeMVar blocked
+  print True
+  -- timeout interrupts a long delay and leaves a short action alone.
+  r1 <- timeout 20000 (threadDelay 10000000)
+  print r1
+  r2 <- timeout 1000000 (return 42)
+  print (r2 :: Maybe Int)
+  -- A timeout that expires just as the action finishes never lets its
+  -- exception escape timeout.
+  rs <- forM [1..200] $ \_ ->
+    try (timeout 1000 (threadDelay 1000)) :: IO (Either SomeException (Maybe ()))
+  threadDelay 20000
+  print (all (either (const False) (const True)) rs)
+  -- registerDelay sets its TVar once the delay is over.
+  tv <- registerDelay 20000
+  before <- readTVarIO tv
+  atomically $ readTVar tv >>= \b -> unless b retry
+  print (not before)
@@ -0,0 +1,8 @@
+
+True
+True
+True
+Nothing
+Just 42
+True
+True
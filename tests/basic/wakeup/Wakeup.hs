@@ -0,0 +1,39 @@
+-- Checks that a thread blocked on its Capability is woken up as soon as it can
+-- continue, rather than when its blocked loop times out, and that no wakeup is
+-- lost when two threads hand values back and forth many times.
+import Control.Concurrent
+import Control.Monad
+import Data.Int
+
+foreign import java unsafe "@static java.lang.System.nanoTime"
+  nanoTime :: IO Int64
+
+rounds :: Int
+rounds = 2000
+
+main :: IO ()
+main = do
+  -- A single wakeup takes well below the 100ms a blocked loop waits for.
+  box   <- newEmptyMVar
+  woken <- newEmptyMVar
+  _ <- forkIO $ takeMVar box >>= \() -> nanoTime >>= putMVar woken
+  threadDelay 10000
+  putAt <- nanoTime
+  putMVar box ()
+  t <- takeMVar woken
+  print (t - putAt < 50000000)
+  -- Ping-pong between two forked threads, each blocking in every round.
+  ping <- newEmptyMVar
+  pong <- newEmptyMVar
+  done <- newEmptyMVar
+  start <- nanoTime
+  _ <- forkIO $ forM_ [1 .. rounds] $ \i -> takeMVar ping >>= putMVar pong . (+ i)
+  _ <- forkIO $ do
+    total <- foldM (\acc i -> do putMVar ping i
+                                 r <- takeMVar pong
+                                 return (acc + r)) 0 [1 .. rounds]
+    putMVar done total
+  total <- takeMVar done
+  end <- nanoTime
+  print (total == rounds * (rounds + 1))
+  print (end - start < 2000000000)
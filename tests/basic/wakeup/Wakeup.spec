@@ -0,0 +1,4 @@
+
+True
+True
+True
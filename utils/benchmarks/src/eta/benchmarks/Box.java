@@ -0,0 +1,18 @@
+package eta.benchmarks;
+
+import eta.runtime.stg.DataCon;
+
+/* A boxed long, standing in for the data constructors of the base libraries,
+   which are not on the classpath of the benchmarks. */
+public final class Box extends DataCon {
+    public final long value;
+
+    public Box(long value) {
+        this.value = value;
+    }
+
+    @Override
+    public int getTag() {
+        return 1;
+    }
+}
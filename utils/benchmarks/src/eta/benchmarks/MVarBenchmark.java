@@ -0,0 +1,78 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.concurrent.Concurrent;
+import eta.runtime.concurrent.MVar;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.TSO;
+
+/* A round trip between two threads over a pair of MVars: the benchmark thread
+   puts a value in one and takes the reply from the other, while a thread with
+   a Capability of its own echoes the values back. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MVarBenchmark {
+
+    private static final Box PING = new Box(1);
+    private static final Box STOP = new Box(0);
+
+    private MVar requests;
+    private MVar replies;
+    private Thread ponger;
+
+    @Setup
+    public void setup() {
+        requests = new MVar(null);
+        replies  = new MVar(null);
+        ponger   = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Capability cap = Capability.getLocal();
+                StgContext context = cap.context;
+                TSO tso = new TSO(null);
+                context.reset(cap, tso);
+                tso.cap = cap;
+                Closure value;
+                do {
+                    value = Concurrent.takeMVar(context, requests);
+                    Concurrent.putMVar(context, replies, value);
+                } while (value != STOP);
+            }
+        }, "mvar-ponger");
+        ponger.setDaemon(true);
+        ponger.start();
+    }
+
+    @TearDown
+    public void tearDown(ThreadState state) throws InterruptedException {
+        Concurrent.putMVar(state.context, requests, STOP);
+        Concurrent.takeMVar(state.context, replies);
+        ponger.join();
+    }
+
+    @Benchmark
+    public Closure pingPong(ThreadState state) {
+        StgContext context = state.context;
+        Concurrent.putMVar(context, requests, PING);
+        return Concurrent.takeMVar(context, replies);
+    }
+}
@@ -0,0 +1,71 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.Runtime;
+import eta.runtime.io.MemoryManager;
+
+/* The bulk memory operations of the MemoryManager, which back memcpy, memmove
+   and memset, for sizes from 64 bytes to 64MB. With `raw` set to false, the
+   ByteBuffer fallback is measured instead of raw memory access. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryCopyBenchmark {
+
+    @Param({"64", "1024", "65536", "1048576", "67108864"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean raw;
+
+    private long src;
+    private long dest;
+
+    @Setup
+    public void setup() {
+        Runtime.setRawMemoryAccess(raw);
+        /* Room for the overlapping copy. */
+        src  = MemoryManager.allocateBuffer(size + 64, true);
+        dest = MemoryManager.allocateBuffer(size + 64, true);
+        MemoryManager.fill(src, (byte) 1, size + 64);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryManager.free(src);
+        MemoryManager.free(dest);
+    }
+
+    @Benchmark
+    public void memcpy() {
+        MemoryManager.copy(src, dest, size);
+    }
+
+    /* Overlapping by half a cache line, which has to copy backwards. */
+    @Benchmark
+    public void memmove() {
+        MemoryManager.copy(src, src + 32, size);
+    }
+
+    @Benchmark
+    public void memset() {
+        MemoryManager.fill(dest, (byte) 0, size);
+    }
+}
@@ -0,0 +1,61 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.io.MemoryManager;
+
+/* Allocation and free of off-heap memory through the MemoryManager, both for
+   sizes that are served by the SizeClassAllocator and for ones that go to the
+   coalescing allocator. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryManagerBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private final long[] addresses = new long[BATCH];
+
+    @Benchmark
+    public long allocateFree() {
+        long address = MemoryManager.allocateBuffer(size, direct);
+        MemoryManager.free(address);
+        return address;
+    }
+
+    /* Keeps a batch of allocations live at once, so that frees have neighbours to
+       coalesce with. */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long allocateFreeBatch() {
+        long[] addresses = this.addresses;
+        for (int i = 0; i < BATCH; i++) {
+            addresses[i] = MemoryManager.allocateBuffer(size, direct);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            MemoryManager.free(addresses[i]);
+        }
+        return addresses[BATCH - 1];
+    }
+}
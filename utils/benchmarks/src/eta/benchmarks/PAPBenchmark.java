@@ -0,0 +1,84 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.apply.Function;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+
+/* Application of functions of three arguments: saturated calls, and partial
+   applications that build a PAP which is applied to the rest of the arguments
+   later on. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PAPBenchmark {
+
+    private static final Box A = new Box(1);
+    private static final Box B = new Box(2);
+    private static final Box C = new Box(3);
+
+    /* Returns its third argument. */
+    public static final class Const3 extends Function {
+        @Override
+        public int arity() {
+            return 3;
+        }
+
+        @Override
+        public Closure enter(StgContext context) {
+            return context.R(4);
+        }
+    }
+
+    private static final Function FUN = new Const3();
+
+    @State(Scope.Thread)
+    public static class Partial extends ThreadState {
+        public Closure pap;
+
+        @Setup
+        public void apply() {
+            pap = FUN.applyP(context, A);
+        }
+    }
+
+    @Benchmark
+    public Closure saturated(ThreadState state) {
+        return FUN.applyPPP(state.context, A, B, C);
+    }
+
+    /* Builds a PAP and saturates it right away. */
+    @Benchmark
+    public Closure partialThenSaturate(ThreadState state) {
+        StgContext context = state.context;
+        return FUN.applyP(context, A).applyPP(context, B, C);
+    }
+
+    /* Applies a PAP that was built once, as with a partially applied function
+       that is passed to map. */
+    @Benchmark
+    public Closure applyPAP(Partial state) {
+        return state.pap.applyPP(state.context, B, C);
+    }
+
+    /* Adds one argument at a time, building a PAP of a PAP. */
+    @Benchmark
+    public Closure applyOneByOne(ThreadState state) {
+        StgContext context = state.context;
+        return FUN.applyP(context, A).applyP(context, B).applyP(context, C);
+    }
+}
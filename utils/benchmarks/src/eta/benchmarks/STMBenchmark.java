@@ -0,0 +1,85 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.apply.Function;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stm.STM;
+import eta.runtime.stm.TVar;
+
+/* Transactions that increment a counter in a TVar, with every thread updating
+   its own TVar and with all of them updating the same one. The contended case
+   measures commits that fail validation and rerun along with the lock traffic
+   on the TVar. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class STMBenchmark {
+
+    /* The STM action that increments the counter in `tvar`. */
+    public static final class Increment extends Function {
+        private final TVar tvar;
+
+        public Increment(TVar tvar) {
+            this.tvar = tvar;
+        }
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Closure enter(StgContext context) {
+            Box counter = (Box) STM.readTVar(context, tvar);
+            STM.writeTVar(context, tvar, new Box(counter.value + 1));
+            return counter;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        public Closure increment;
+
+        @Setup
+        public void setup() {
+            increment = new Increment(new TVar(new Box(0)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Local extends ThreadState {
+        public Closure increment;
+
+        @Setup
+        public void createTVar() {
+            increment = new Increment(new TVar(new Box(0)));
+        }
+    }
+
+    @Benchmark
+    public Closure uncontended(Local state) {
+        return STM.atomically(state.context, state.increment);
+    }
+
+    @Benchmark
+    public Closure contended(Local state, Shared shared) {
+        return STM.atomically(state.context, shared.increment);
+    }
+}
@@ -0,0 +1,79 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.TSO;
+import static eta.runtime.stg.TSO.WhatNext.ThreadComplete;
+
+/* Throughput of the scheduler in threads per microsecond, for threads that
+   complete right away. A thread is either run with Capability.schedule on the
+   benchmark thread, or forked onto its run queue in batches, as forkIO does, to
+   be stolen and run by the worker Capabilities. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBenchmark {
+
+    private static final int BATCH = 64;
+
+    private static final AtomicInteger running = new AtomicInteger();
+
+    public static final class Complete extends Closure {
+        @Override
+        public Closure enter(StgContext context) {
+            context.currentTSO.whatNext = ThreadComplete;
+            running.decrementAndGet();
+            return null;
+        }
+    }
+
+    private static final Closure COMPLETE = new Complete();
+
+    private Capability cap;
+
+    @Setup
+    public void setup() {
+        cap = Capability.getLocal();
+    }
+
+    @Benchmark
+    public Closure scheduleOne() throws Exception {
+        running.incrementAndGet();
+        return cap.schedule(new TSO(COMPLETE));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int forkBatch() {
+        Capability cap = this.cap;
+        running.addAndGet(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            cap.appendToRunQueue(new TSO(COMPLETE));
+        }
+        cap.manageOrSpawnWorkers();
+        int n;
+        while ((n = running.get()) > 0) {
+            Thread.yield();
+        }
+        return n;
+    }
+}
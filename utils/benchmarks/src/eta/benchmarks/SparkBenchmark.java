@@ -0,0 +1,51 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.parallel.Parallel;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.thunk.Ap1Upd;
+
+/* Submitting sparks for unevaluated thunks and taking them back out of the spark
+   pool, as a Capability with nothing else to do would. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparkBenchmark {
+
+    private static final int BATCH = 64;
+
+    private static final Box VALUE = new Box(42);
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Closure submitAndFind(ThreadState state) {
+        Capability cap = state.cap;
+        for (int i = 0; i < BATCH; i++) {
+            cap.newSpark(new Ap1Upd(VALUE));
+        }
+        Closure spark = null;
+        for (int i = 0; i < BATCH; i++) {
+            spark = Parallel.findSpark(cap);
+        }
+        return spark;
+    }
+
+    /* Sparks for thunks that are already evaluated are dropped right away. */
+    @Benchmark
+    public boolean submitDud(ThreadState state) {
+        return state.cap.newSpark(VALUE);
+    }
+}
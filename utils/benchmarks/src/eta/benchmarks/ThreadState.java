@@ -0,0 +1,27 @@
+package eta.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.TSO;
+
+/* The Capability of a benchmark thread, set up as if the thread were running a
+   TSO, for benchmarks that call into the runtime the way generated code does. */
+@State(Scope.Thread)
+public class ThreadState {
+    public Capability cap;
+    public TSO        tso;
+    public StgContext context;
+
+    @Setup
+    public void setup() {
+        cap     = Capability.getLocal();
+        tso     = new TSO(null);
+        context = cap.context;
+        context.reset(cap, tso);
+        tso.cap = cap;
+    }
+}
@@ -0,0 +1,58 @@
+package eta.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.thunk.Ap1Upd;
+import eta.runtime.thunk.Thunk;
+
+/* Entering updatable thunks: the first entry, which evaluates the thunk and
+   updates it with its value, and later entries, which follow the indirection. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThunkBenchmark {
+
+    private static final Box VALUE = new Box(42);
+
+    @State(Scope.Thread)
+    public static class Evaluated extends ThreadState {
+        public Thunk thunk;
+
+        @Setup
+        public void evaluate() {
+            thunk = new Ap1Upd(VALUE);
+            thunk.enter(context);
+        }
+    }
+
+    @Benchmark
+    public Closure enterAndUpdate(ThreadState state) {
+        return new Ap1Upd(VALUE).enter(state.context);
+    }
+
+    /* A thunk that evaluates to another thunk, as when a lazy value is passed on
+       unevaluated. */
+    @Benchmark
+    public Closure enterNested(ThreadState state) {
+        return new Ap1Upd(new Ap1Upd(VALUE)).enter(state.context);
+    }
+
+    @Benchmark
+    public Closure evaluateUpdated(Evaluated state) {
+        return state.thunk.evaluate(state.context);
+    }
+}